@@ -0,0 +1,39 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j;
+
+/**
+ * A Listener which can process several messages at once. The
+ * connection passes each run of messages which become deliverable
+ * together (such as the contents of a packed message, or the messages
+ * after a gap which has just been filled) in one call to onMessages(), 
+ * in delivery order. Messages which become deliverable one at a time
+ * may still be passed to onMessage().
+ */
+public interface BatchListener extends Listener {
+
+    /**
+     * Processes the messages in <em>batch</em> from index 0 to
+     * <em>count</em> - 1. The array belongs to the connection and
+     * is reused after this method returns, so a Listener which keeps
+     * any of the messages must copy the references (and retain the
+     * messages if the connection pools its buffers).
+     */
+    public void onMessages(Message[] batch, int count);
+
+}
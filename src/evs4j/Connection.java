@@ -76,6 +76,14 @@ public interface Connection {
      * Enqueues a message for sending.
      */
     public void send(Message message) throws IOException;
+
+    /**
+     * Enqueues a message for sending, like send(Message), and
+     * returns a future which completes when the message has been
+     * ordered and delivered, and again when it is safe. If the
+     * connection is closed first, the future completes exceptionally.
+     */
+    public DeliveryFuture sendAsync(Message message) throws IOException;
 		     
     /**
      * Sets the Listener to which the connection
@@ -86,5 +94,14 @@ public interface Connection {
      */
     public void setListener(Listener listener);
 
+    /**
+     * Sets the Listener for the messages on <em>channel</em>,
+     * or removes it if <em>listener</em> is null. Channel 0 is
+     * the channel of setListener(Listener). Each Listener also
+     * gets the configurations and alerts. This method must be 
+     * called before open().
+     */
+    public void setListener(int channel, Listener listener);
+
 }
 
@@ -23,7 +23,7 @@ import java.io.IOException;
  * Useful for implementing chains of connections. Subclasses have to implement
  * at least the send() and onMessage methods.
  */
-public abstract class ConnectionDecorator implements Connection, Listener {
+public abstract class ConnectionDecorator implements Connection, BatchListener {
 
     protected Connection conn;
 
@@ -84,8 +84,28 @@ public abstract class ConnectionDecorator implements Connection, Listener {
 	this.listener = listener;
     }
 
+    /**
+     * Sets the Listener for channel 0, or calls setListener(int, Listener)
+     * on the underlying connection, so the messages on other
+     * channels do not go through this decorator.
+     */
+    public void setListener(int channel, Listener listener) {
+	if (channel == 0) {
+	    setListener(listener);
+	} else {
+	    conn.setListener(channel, listener);
+	}
+    }
+
     public abstract void send(Message message) throws IOException;
 
+    /**
+     * Calls sendAsync(Message) on the underlying connection.
+     */
+    public DeliveryFuture sendAsync(Message message) throws IOException {
+	return conn.sendAsync(message);
+    }
+
     /**
      * The configuration that was installed last by
      * the underlying connection.
@@ -99,6 +119,32 @@ public abstract class ConnectionDecorator implements Connection, Listener {
 
     public abstract void onMessage(Message message);
 
+    /**
+     * Calls onMessage(Message) for each message, because
+     * subclasses may change the messages on their way up.
+     * Subclasses which do not can override this method to
+     * pass the batch through with passMessages().
+     */
+    public void onMessages(Message[] batch, int count) {
+	for (int i = 0; i < count; i++) {
+	    onMessage(batch[i]);
+	}
+    }
+
+    /**
+     * Passes <em>batch</em> to the Listener in one call if
+     * it is a BatchListener, or one message at a time.
+     */
+    protected void passMessages(Message[] batch, int count) {
+	if (listener instanceof BatchListener) {
+	    ((BatchListener) listener).onMessages(batch, count);
+	} else {
+	    for (int i = 0; i < count; i++) {
+		listener.onMessage(batch[i]);
+	    }
+	}
+    }
+
     public void onAlert(Alert alert) {
 	listener.onAlert(alert);
     }
@@ -0,0 +1,54 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The result of Connection.sendAsync(Message). It completes with
+ * the id assigned to the message when the message is delivered
+ * to this processor's Listener, and its safe stage completes with
+ * the same id once every processor in the configuration has
+ * received the message. For a safe message the two happen together.
+ * <p>
+ * Both are completed by the connection's thread, so actions which
+ * are not registered with the *Async methods run on that thread, 
+ * like Listener.onMessage(), and must not block.
+ * <p>
+ * When the connection was given an Executor with
+ * SRPConnection.setDeliveryExecutor(), the first stage completes
+ * when the message is handed to the DeliveryStage, so possibly
+ * before Listener.onMessage() has been called for it.
+ */
+public class DeliveryFuture extends CompletableFuture<Integer> {
+
+    private CompletableFuture<Integer> safe;
+
+    public DeliveryFuture() {
+	this.safe = new CompletableFuture<Integer>();
+    }
+
+    /**
+     * Returns the stage which completes when the
+     * message is safe.
+     */
+    public CompletableFuture<Integer> getSafeStage() {
+	return safe;
+    }
+
+}
@@ -17,6 +17,8 @@
 
 package evs4j;
 
+import java.nio.ByteBuffer;
+
 /**
  * Interface for totally-ordered messages.
  */
@@ -53,6 +55,51 @@ public interface Message {
      */
     public int getLength();
 
+    /**
+     * Returns a read-only view of the getLength() bytes of
+     * the message, positioned at zero. The view shares the
+     * packet the message arrived in (which may be direct) and
+     * is valid for as long as getData() would be.
+     */
+    public ByteBuffer asReadOnlyBuffer();
+
+    /**
+     * Returns a writable view of the space for the data of a
+     * message which has not been sent yet, positioned at zero
+     * and limited to Connection.getMaxMessageSize(). Put the
+     * data into it, e.g. from other ByteBuffers, and call
+     * setLength() with its position before sending.
+     */
+    public ByteBuffer getPayload();
+
+    /**
+     * Returns the key of the message, 0 unless the
+     * sender set one.
+     */
+    public int getKey();
+
+    /**
+     * Sets the key of a message which has not been sent yet.
+     * When the connection delivers on more than one lane,
+     * the messages with the same key are delivered in order
+     * on the same lane.
+     */
+    public void setKey(int key);
+
+    /**
+     * Returns the channel of the message, 0 unless
+     * the sender chose another one.
+     */
+    public int getChannel();
+
+    /**
+     * Sets the channel of a message which has not been sent
+     * yet, from 0 to 65535. The message is delivered to the
+     * Listener registered for its channel, and skipped by
+     * processors which have none.
+     */
+    public void setChannel(int channel);
+
     /**
      * Returns the Processor object of the processor that 
      * originated this message.
@@ -65,6 +112,19 @@ public interface Message {
      */
     public void setLength(int length);
 
+    /**
+     * When the connection pools its buffers, the data of a
+     * delivered message may be reused after Listener.onMessage()
+     * returns. A Listener which keeps the message must call this 
+     * method, and release() when it no longer needs the message.
+     */
+    public void retain();
+
+    /**
+     * Undoes one call to retain().
+     */
+    public void release();
+
 }
 
 
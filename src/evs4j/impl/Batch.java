@@ -0,0 +1,87 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl;
+
+import evs4j.Alert;
+import evs4j.BatchListener;
+import evs4j.Configuration;
+import evs4j.Listener;
+import evs4j.Message;
+
+/**
+ * Collects the messages delivered to it, so that they can
+ * be passed to a BatchListener in one call. A packed message
+ * can then be delivered to it like to any other Listener.
+ * Configurations and alerts are passed on after the messages
+ * collected before them.
+ */
+public class Batch implements Listener {
+
+    private BatchListener listener;
+
+    private Message[] messages;
+
+    private int count;
+
+    public Batch(BatchListener listener) {
+	this.listener = listener;
+	this.messages = new Message[DEFAULT_LENGTH];
+    }
+
+    public static final int DEFAULT_LENGTH = 64;
+
+    public int getCount() {
+	return count;
+    }
+
+    public void onMessage(Message message) {
+	if (count == messages.length) {
+	    Message[] tmp = new Message[count * 2];
+	    System.arraycopy(messages, 0, tmp, 0, count);
+	    messages = tmp;
+	}
+	messages[count++] = message;
+    }
+
+    /**
+     * Passes the messages collected so far to the BatchListener,
+     * if there are any, and empties the batch.
+     */
+    public void flush() {
+	if (count > 0) {
+	    int n = count;
+	    count = 0;
+	    listener.onMessages(messages, n);
+	    //do not keep the messages alive
+	    for (int i = 0; i < n; i++) {
+		messages[i] = null;
+	    }
+	}
+    }
+
+    public void onConfiguration(Configuration configuration) {
+	flush();
+	listener.onConfiguration(configuration);
+    }
+
+    public void onAlert(Alert alert) {
+	flush();
+	listener.onAlert(alert);
+    }
+
+}
@@ -0,0 +1,194 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package evs4j.impl;
+
+import java.util.concurrent.Executor;
+import evs4j.Alert;
+import evs4j.BatchListener;
+import evs4j.Configuration;
+import evs4j.Listener;
+import evs4j.Message;
+import evs4j.impl.message.RegularMessage;
+
+/**
+ * A Listener which passes each message to the Listener registered
+ * for its channel, so that unrelated streams can share one ring.
+ * Every Listener gets the configurations and the alerts. The 
+ * ReceivedList does not even unpack the messages on a channel
+ * with no Listener.
+ */
+public class ChannelDispatcher implements BatchListener, Stage {
+
+    public ChannelDispatcher() {
+	this.listeners = new Listener[1];
+	this.run = new Message[0];
+    }
+
+    /**
+     * The Listeners indexed by channel.
+     */
+    private Listener[] listeners;
+
+    /**
+     * The messages of one channel taken from a batch,
+     * used only by the connection's thread.
+     */
+    private Message[] run;
+
+    /**
+     * Sets the Listener for <em>channel</em>, or
+     * removes it if <em>listener</em> is null.
+     */
+    public void setListener(int channel, Listener listener) {
+	if (channel < 0 || channel > RegularMessage.MAX_CHANNEL) {
+	    throw new IllegalArgumentException("Invalid channel: " + channel);
+	}
+	if (channel >= listeners.length) {
+	    Listener[] tmp = new Listener[channel + 1];
+	    System.arraycopy(listeners, 0, tmp, 0, listeners.length);
+	    listeners = tmp;
+	}
+	listeners[channel] = listener;
+    }
+
+    public Listener getListener(int channel) {
+	Listener listener = null;
+	if (channel < listeners.length) {
+	    listener = listeners[channel];
+	}
+	return listener;
+    }
+
+    /**
+     * Returns true iff there is a Listener for <em>channel</em>.
+     */
+    public boolean isSubscribed(int channel) {
+	return getListener(channel) != null;
+    }
+
+    /**
+     * Puts every Listener behind its own DeliveryStage on
+     * <em>executor</em>, or its own KeyedDeliveryStage if there
+     * is more than one lane, so that a slow channel does not
+     * hold up the others. A Listener registered for several
+     * channels gets one stage for all of them.
+     */
+    public void stage(Executor executor, int capacity, int lanes) {
+	Listener[] staged = new Listener[listeners.length];
+	for (int i = 0; i < listeners.length; i++) {
+	    if (listeners[i] == null) {
+		continue;
+	    }
+	    int j = indexOf(listeners[i], i);
+	    if (j < i) {
+		staged[i] = staged[j];
+	    } else if (lanes > 1) {
+		staged[i] = new KeyedDeliveryStage(listeners[i], executor, capacity, lanes);
+	    } else {
+		staged[i] = new DeliveryStage(listeners[i], executor, capacity);
+	    }
+	}
+	listeners = staged;
+    }
+
+    /**
+     * Returns the room left in the fullest stage, or
+     * Integer.MAX_VALUE if the Listeners are not staged.
+     */
+    public int getRoom() {
+	int room = Integer.MAX_VALUE;
+	for (int i = 0; i < listeners.length; i++) {
+	    if (listeners[i] instanceof Stage) {
+		room = Math.min(room, ((Stage) listeners[i]).getRoom());
+	    }
+	}
+	return room;
+    }
+
+    /**
+     * Returns the first channel up to <em>max</em>
+     * with <em>listener</em>.
+     */
+    private int indexOf(Listener listener, int max) {
+	int i = 0;
+	while (i < max && listeners[i] != listener) {
+	    i++;
+	}
+	return i;
+    }
+
+    public void onMessage(Message message) {
+	Listener listener = getListener(message.getChannel());
+	if (listener != null) {
+	    listener.onMessage(message);
+	}
+    }
+
+    /**
+     * Passes each run of messages on the same channel
+     * to its Listener in one call.
+     */
+    public void onMessages(Message[] batch, int count) {
+	int start = 0;
+	while (start < count) {
+	    int channel = batch[start].getChannel();
+	    int end = start + 1;
+	    while (end < count && batch[end].getChannel() == channel) {
+		end++;
+	    }
+	    Listener listener = getListener(channel);
+	    if (listener instanceof BatchListener) {
+		BatchListener batchListener = (BatchListener) listener;
+		if (start == 0) {
+		    batchListener.onMessages(batch, end);
+		} else {
+		    int n = end - start;
+		    if (run.length < n) {
+			run = new Message[batch.length];
+		    }
+		    System.arraycopy(batch, start, run, 0, n);
+		    batchListener.onMessages(run, n);
+		    for (int i = 0; i < n; i++) {
+			run[i] = null;
+		    }
+		}
+	    } else if (listener != null) {
+		for (int i = start; i < end; i++) {
+		    listener.onMessage(batch[i]);
+		}
+	    }
+	    start = end;
+	}
+    }
+
+    public void onConfiguration(Configuration configuration) {
+	for (int i = 0; i < listeners.length; i++) {
+	    if (listeners[i] != null && indexOf(listeners[i], i) == i) {
+		listeners[i].onConfiguration(configuration);
+	    }
+	}
+    }
+
+    public void onAlert(Alert alert) {
+	for (int i = 0; i < listeners.length; i++) {
+	    if (listeners[i] != null && indexOf(listeners[i], i) == i) {
+		listeners[i].onAlert(alert);
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,91 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package evs4j.impl;
+
+import java.util.Vector;
+import evs4j.Alert;
+import evs4j.BatchListener;
+import evs4j.Configuration;
+import evs4j.Listener;
+import evs4j.Processor;
+import evs4j.impl.message.MessageWriter;
+import evs4j.impl.message.RegularMessage;
+import evs4j.impl.message.TestMessages;
+
+public class ChannelDispatcherTest {
+
+    public static void main(String[] args) {
+	ChannelDispatcherTest test = new ChannelDispatcherTest();
+	test.testChannels();
+    }
+
+    private MessageWriter writer;
+
+    public ChannelDispatcherTest() {
+	writer = new MessageWriter();
+    }
+
+    public void testChannels() {
+	final Vector events = new Vector();
+	BatchListener audit = new BatchListener() {
+		public void onMessages(evs4j.Message[] batch, int count) {
+		    Vector ids = new Vector();
+		    for (int i = 0; i < count; i++) {
+			ids.add(Integer.valueOf(batch[i].getId()));
+		    }
+		    events.add(ids);
+		}
+		public void onMessage(evs4j.Message message) {
+		    throw new RuntimeException("Test failed");
+		}
+		public void onConfiguration(Configuration configuration) {
+		    events.add("audit conf");
+		}
+		public void onAlert(Alert alert) { }
+	    };
+	Listener locks = new Listener() {
+		public void onMessage(evs4j.Message message) {
+		    events.add("lock " + message.getId());
+		}
+		public void onConfiguration(Configuration configuration) {
+		    events.add("locks conf");
+		}
+		public void onAlert(Alert alert) { }
+	    };
+	ChannelDispatcher channels = new ChannelDispatcher();
+	channels.setListener(1, audit);
+	channels.setListener(2, locks);
+	channels.setListener(4, audit);
+	SRPConnection conn = new SRPConnection(0, new Processor(1), "port=9999&transport=loopback");
+	conn.setListener(channels);
+	ReceivedList received = new ReceivedList(conn);
+	//nobody listens to channel 3
+	int[] ids = {1, 3, 4, 5, 6, 2};
+	int[] numbers = {1, 1, 2, 3, 1, 1};
+	for (int i = 0; i < ids.length; i++) {
+	    RegularMessage m = TestMessages.create(new Processor(2), ids[i], false);
+	    m.setChannel(numbers[ids[i] - 1]);
+	    writer.writeMessage(m);
+	    received.add(m);
+	}
+	channels.onConfiguration(new SRPConfiguration(conn, new ProcessorSet(new Processor(1)), 5L, false));
+	if (!events.toString().equals("[[1], [2], lock 3, [5, 6], audit conf, locks conf]")) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+}
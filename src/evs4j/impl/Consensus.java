@@ -17,17 +17,14 @@
 
 package evs4j.impl;
 
-import java.util.Set;
-import java.util.HashSet;
-import java.util.Iterator;
 import evs4j.Processor;
 
 public class Consensus {
 
-    private Set processors;
+    private ProcessorSet processors;
 
     private Consensus() {
-	processors = new HashSet();
+	processors = new ProcessorSet();
 	maxConfigurationNumber = 0;
     }
 
@@ -72,7 +69,7 @@ public class Consensus {
      * of failed processors) is listed in this Consensus.
      */
     public boolean check(ProcessorSet diff) {
-	return processors.containsAll(diff.getProcessors());
+	return processors.contains(diff);
     }
 
 }
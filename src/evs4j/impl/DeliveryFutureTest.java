@@ -0,0 +1,97 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package evs4j.impl;
+
+import evs4j.Alert;
+import evs4j.Configuration;
+import evs4j.DeliveryFuture;
+import evs4j.Listener;
+import evs4j.Processor;
+import evs4j.impl.message.MessageWriter;
+import evs4j.impl.message.RegularMessage;
+import evs4j.impl.message.TestMessages;
+
+public class DeliveryFutureTest {
+
+    public static void main(String[] args) {
+	DeliveryFutureTest test = new DeliveryFutureTest();
+	test.testDeliveryFuture();
+    }
+
+    private MessageWriter writer;
+
+    public DeliveryFutureTest() {
+	writer = new MessageWriter();
+    }
+
+    public void testDeliveryFuture() {
+	SRPConnection conn = new SRPConnection(0, new Processor(1), "port=9999&transport=loopback");
+	conn.setListener(new Listener() {
+		public void onMessage(evs4j.Message message) { }
+		public void onConfiguration(Configuration configuration) { }
+		public void onAlert(Alert alert) { }
+	    });
+	ReceivedList received = new ReceivedList(conn);
+	DeliveryFuture[] futures = new DeliveryFuture[3];
+	//message 1 is agreed, 2 is safe, and
+	//3 is packed with two futures
+	RegularMessage[] list = new RegularMessage[3];
+	for (int i = 0; i < list.length; i++) {
+	    list[i] = TestMessages.create(new Processor(1), i + 1, i == 1);
+	    futures[i] = new DeliveryFuture();
+	    list[i].addFuture(futures[i]);
+	}
+	RegularMessage packed = TestMessages.create(new Processor(1), 3, false);
+	packed.setPacked(true);
+	packed.append(list[2]);
+	DeliveryFuture extra = new DeliveryFuture();
+	RegularMessage other = (RegularMessage) conn.createMessage(false);
+	other.addFuture(extra);
+	packed.append(other);
+	list[2] = packed;
+	for (int i = 0; i < list.length; i++) {
+	    writer.writeMessage(list[i]);
+	}
+	received.add(list[0]);
+	received.add(list[2]);
+	if (futures[0].getNow(null).intValue() != 1 ||
+	    futures[0].getSafeStage().isDone() ||
+	    futures[2].isDone()) {
+	    throw new RuntimeException("Test failed");
+	}
+	received.add(list[1]);
+	//2 is not safe yet, so 3 waits for it
+	if (futures[1].isDone() || futures[2].isDone()) {
+	    throw new RuntimeException("Test failed");
+	}
+	received.setSafeMessageId(2);
+	if (futures[0].getSafeStage().getNow(null).intValue() != 1 ||
+	    futures[1].getSafeStage().getNow(null).intValue() != 2 ||
+	    futures[2].getNow(null).intValue() != 3 ||
+	    extra.getNow(null).intValue() != 3 ||
+	    extra.getSafeStage().isDone()) {
+	    throw new RuntimeException("Test failed");
+	}
+	received.setSafeMessageId(3);
+	received.prune();
+	if (futures[2].getSafeStage().getNow(null).intValue() != 3 ||
+	    extra.getSafeStage().getNow(null).intValue() != 3) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+}
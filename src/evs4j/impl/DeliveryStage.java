@@ -0,0 +1,311 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import evs4j.Alert;
+import evs4j.BatchListener;
+import evs4j.Configuration;
+import evs4j.Listener;
+import evs4j.Message;
+
+/**
+ * A Listener which hands the events to the application's Listener
+ * on a thread of an Executor, so that a slow Listener does not hold
+ * up the connection's thread, and with it the token. The events go
+ * through a ring with a single producer (the connection's thread)
+ * and a single consumer (the task running on the Executor), and
+ * only one task runs at a time, so the order is preserved.
+ * <p>
+ * When the ring is half full the ReceivedList holds the messages
+ * back, and the Listener gets an SRPBacklogAlert after the events
+ * already queued. The other half takes the configurations and the
+ * contents of packed messages; if even that fills up, the connection's
+ * thread waits for the Listener. A BatchListener gets the successive
+ * messages found in the ring in one call, up to the capacity of the ring.
+ */
+public class DeliveryStage implements BatchListener, Stage, Runnable {
+
+    /**
+     * A ring with one producer and one consumer. The producer
+     * publishes an element by advancing the tail, and frees no
+     * slot until the consumer has advanced the head past it.
+     */
+    private static class Ring {
+	public Object[] items;
+	public volatile long head;
+	public volatile long tail;
+
+	public Ring(int capacity) {
+	    items = new Object[capacity];
+	}
+
+	public boolean offer(Object object) {
+	    long t = tail;
+	    if (t - head == items.length) {
+		return false;
+	    }
+	    items[(int) (t % items.length)] = object;
+	    tail = t + 1;
+	    return true;
+	}
+
+	public Object poll() {
+	    long h = head;
+	    if (h == tail) {
+		return null;
+	    }
+	    int index = (int) (h % items.length);
+	    Object object = items[index];
+	    items[index] = null;
+	    head = h + 1;
+	    return object;
+	}
+    }
+
+    public DeliveryStage(Listener listener,
+			 Executor executor,
+			 int capacity) {
+	if (capacity <= 0) {
+	    throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+	}
+	this.listener = listener;
+	this.executor = executor;
+	this.capacity = capacity;
+	this.ring = new Ring(capacity);
+	this.scheduled = new AtomicBoolean();
+	if (listener instanceof BatchListener) {
+	    this.batchListener = (BatchListener) listener;
+	    this.batch = new Message[capacity];
+	}
+    }
+
+    /**
+     * The application's Listener.
+     */
+    private Listener listener;
+
+    /**
+     * The application's Listener if it is
+     * a BatchListener, or null.
+     */
+    private BatchListener batchListener;
+
+    /**
+     * The messages collected for the BatchListener,
+     * used only by the consumer.
+     */
+    private Message[] batch;
+
+    private int count;
+
+    private Executor executor;
+
+    private int capacity;
+
+    private Ring ring;
+
+    /**
+     * The number of events added, written
+     * only by the producer.
+     */
+    private volatile long added;
+
+    /**
+     * The number of events processed, written
+     * only by the consumer.
+     */
+    private volatile long processed;
+
+    /**
+     * True iff a task has been submitted
+     * and has not finished.
+     */
+    private AtomicBoolean scheduled;
+
+    /**
+     * True iff an alert has been sent since
+     * the backlog last fell to zero.
+     */
+    private volatile boolean alerted;
+
+    /**
+     * Returns the number of events not yet processed.
+     */
+    public int getBacklog() {
+	return (int) (added - processed);
+    }
+
+    /**
+     * Returns the room left below half the capacity.
+     */
+    public int getRoom() {
+	return Math.max(capacity / 2, 1) - getBacklog();
+    }
+
+    public void onMessage(Message message) {
+	//the buffer may be reused when we return
+	message.retain();
+	add(message);
+    }
+
+    public void onMessages(Message[] batch, int count) {
+	for (int i = 0; i < count; i++) {
+	    onMessage(batch[i]);
+	}
+    }
+
+    public void onConfiguration(Configuration configuration) {
+	add(configuration);
+    }
+
+    public void onAlert(Alert alert) {
+	add(alert);
+    }
+
+    void add(Object event) {
+	while (!ring.offer(event)) {
+	    //the messages are held back long before
+	    //this, so it is rare enough to wait
+	    schedule();
+	    Thread.yield();
+	}
+	added++;
+	schedule();
+	if (getRoom() <= 0 && !alerted) {
+	    alerted = true;
+	    //after the events before it
+	    add(new SRPBacklogAlert(getBacklog(), capacity));
+	}
+    }
+
+    private void schedule() {
+	if (scheduled.compareAndSet(false, true)) {
+	    try {
+		executor.execute(this);
+	    } catch (RejectedExecutionException e) {
+		//the events wait for the next one
+		scheduled.set(false);
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    /**
+     * Runs the task again after it stopped at a
+     * KeyedDeliveryStage.Barrier, still scheduled.
+     */
+    void resume() {
+	try {
+	    executor.execute(this);
+	} catch (RejectedExecutionException e) {
+	    //the events wait for the next one
+	    scheduled.set(false);
+	    e.printStackTrace();
+	}
+    }
+
+    /**
+     * Processes the events in the order they were added.
+     * Successive messages go to a BatchListener in one call.
+     */
+    public void run() {
+	while (true) {
+	    Object event = next();
+	    if (event instanceof Message && batchListener != null) {
+		batch[count++] = (Message) event;
+		if (count == batch.length) {
+		    flush();
+		}
+		continue;
+	    }
+	    //the messages come before the event
+	    flush();
+	    if (event == null) {
+		alerted = false;
+		scheduled.set(false);
+		//an event may have been added after
+		//we looked and before we cleared the flag
+		if (ring.head == ring.tail ||
+		    !scheduled.compareAndSet(false, true)) {
+		    break;
+		}
+		continue;
+	    }
+	    if (event instanceof KeyedDeliveryStage.Barrier) {
+		processed++;
+		if (!((KeyedDeliveryStage.Barrier) event).arrive(this)) {
+		    //stay scheduled until the last
+		    //lane to arrive resumes us
+		    break;
+		}
+		continue;
+	    }
+	    try {
+		if (event instanceof Message) {
+		    Message message = (Message) event;
+		    try {
+			listener.onMessage(message);
+		    } finally {
+			message.release();
+		    }
+		} else if (event instanceof Configuration) {
+		    listener.onConfiguration((Configuration) event);
+		} else {
+		    listener.onAlert((Alert) event);
+		}
+	    } catch (RuntimeException e) {
+		//keep going, or the events
+		//after this one are stuck
+		e.printStackTrace();
+	    }
+	    processed++;
+	}
+    }
+
+    /**
+     * Passes the messages collected for the
+     * BatchListener, if any.
+     */
+    private void flush() {
+	if (count > 0) {
+	    int n = count;
+	    count = 0;
+	    try {
+		batchListener.onMessages(batch, n);
+	    } catch (RuntimeException e) {
+		e.printStackTrace();
+	    }
+	    for (int i = 0; i < n; i++) {
+		batch[i].release();
+		batch[i] = null;
+	    }
+	    processed += n;
+	}
+    }
+
+    /**
+     * Returns the next event, or null if there is none.
+     */
+    private Object next() {
+	return ring.poll();
+    }
+
+}
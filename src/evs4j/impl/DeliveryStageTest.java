@@ -0,0 +1,132 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package evs4j.impl;
+
+import java.util.Vector;
+import java.util.concurrent.Executor;
+import evs4j.Alert;
+import evs4j.BatchListener;
+import evs4j.Configuration;
+import evs4j.Listener;
+import evs4j.Processor;
+import evs4j.impl.message.Buffer;
+import evs4j.impl.message.RegularMessage;
+import evs4j.impl.message.TestMessages;
+
+public class DeliveryStageTest {
+
+    public static void main(String[] args) {
+	DeliveryStageTest test = new DeliveryStageTest();
+	test.testDeliveryStage();
+	test.testBatchListener();
+    }
+
+    public void testDeliveryStage() {
+	final Vector events = new Vector();
+	final Vector tasks = new Vector();
+	Listener listener = new Listener() {
+		public void onMessage(evs4j.Message message) {
+		    events.add(Integer.valueOf(message.getId()));
+		}
+		public void onConfiguration(Configuration configuration) {
+		    events.add("conf");
+		}
+		public void onAlert(Alert alert) {
+		    if (alert instanceof SRPBacklogAlert) {
+			events.add("backlog " + ((SRPBacklogAlert) alert).getBacklog());
+		    }
+		}
+	    };
+	//runs the tasks when we say so
+	Executor executor = new Executor() {
+		public void execute(Runnable task) {
+		    tasks.add(task);
+		}
+	    };
+	DeliveryStage stage = new DeliveryStage(listener, executor, 8);
+	SRPConnection conn = new SRPConnection(0, new Processor(1), "port=9999&transport=loopback");
+	Configuration configuration = new SRPConfiguration(conn, new ProcessorSet(new Processor(1)), 5L, false);
+	Buffer[] buffers = new Buffer[3];
+	for (int i = 0; i < buffers.length; i++) {
+	    buffers[i] = new Buffer(0);
+	    RegularMessage m = TestMessages.create(buffers[i], new Processor(2), i + 1, false);
+	    stage.onMessage(m);
+	    if (i == 1) {
+		stage.onConfiguration(configuration);
+	    }
+	}
+	//half full, so the alert is queued after the
+	//events, and only one task is scheduled
+	if (!events.toString().equals("[]") ||
+	    tasks.size() != 1 || stage.getBacklog() != 5 ||
+	    stage.getRoom() != -1 || !buffers[0].isShared()) {
+	    throw new RuntimeException("Test failed");
+	}
+	((Runnable) tasks.remove(0)).run();
+	if (!events.toString().equals("[1, 2, conf, 3, backlog 4]") ||
+	    stage.getBacklog() != 0 || stage.getRoom() != 4 ||
+	    buffers[0].isShared()) {
+	    throw new RuntimeException("Test failed");
+	}
+	stage.onConfiguration(configuration);
+	if (tasks.size() != 1) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+
+    public void testBatchListener() {
+	final Vector batches = new Vector();
+	BatchListener listener = new BatchListener() {
+		public void onMessages(evs4j.Message[] batch, int count) {
+		    Vector ids = new Vector();
+		    for (int i = 0; i < count; i++) {
+			ids.add(Integer.valueOf(batch[i].getId()));
+		    }
+		    batches.add(ids);
+		}
+		public void onMessage(evs4j.Message message) {
+		    throw new RuntimeException("Test failed");
+		}
+		public void onConfiguration(Configuration configuration) {
+		    batches.add("conf");
+		}
+		public void onAlert(Alert alert) {
+		    batches.add("backlog");
+		}
+	    };
+	SRPConnection conn = new SRPConnection(0, new Processor(1), "port=9999&transport=loopback");
+	final Vector tasks = new Vector();
+	Executor executor = new Executor() {
+		public void execute(Runnable task) {
+		    tasks.add(task);
+		}
+	    };
+	DeliveryStage stage = new DeliveryStage(listener, executor, 8);
+	//successive messages are passed in one call,
+	//up to the next other event
+	for (int i = 1; i <= 6; i++) {
+	    stage.onMessage(TestMessages.create(new Processor(2), i, false));
+	}
+	stage.onConfiguration(new SRPConfiguration(conn, new ProcessorSet(new Processor(1)), 5L, false));
+	((Runnable) tasks.remove(0)).run();
+	if (!batches.toString().equals("[[1, 2, 3, 4], backlog, [5, 6], conf]")) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+}
@@ -0,0 +1,158 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package evs4j.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import evs4j.Alert;
+import evs4j.BatchListener;
+import evs4j.Configuration;
+import evs4j.Listener;
+import evs4j.Message;
+
+/**
+ * A Listener which spreads the messages over several DeliveryStages,
+ * or lanes, by their key, so that the application's Listener can
+ * process messages with different keys at the same time. The
+ * messages with the same key go to the same lane, so they are
+ * still processed in the order they were delivered.
+ * <p>
+ * A configuration is a barrier across all the lanes: the Listener
+ * gets it after every lane has processed the messages delivered 
+ * before it, and no lane goes on to the messages after it until 
+ * the Listener has returned. The Listener must be safe for use by
+ * as many threads as there are lanes.
+ */
+public class KeyedDeliveryStage implements BatchListener, Stage {
+
+    /**
+     * The event put into every lane for a configuration. The 
+     * last lane to reach it passes the configuration to the
+     * Listener and starts the other lanes again.
+     */
+    static class Barrier {
+	private KeyedDeliveryStage stage;
+	private Configuration configuration;
+	private AtomicInteger remaining;
+
+	public Barrier(KeyedDeliveryStage stage,
+		       Configuration configuration) {
+	    this.stage = stage;
+	    this.configuration = configuration;
+	    this.remaining = new AtomicInteger(stage.lanes.length);
+	}
+
+	/**
+	 * Called by <em>lane</em> when it reaches the barrier. Returns
+	 * true iff the lane can go on, false if it must stop until
+	 * the last lane resumes it.
+	 */
+	public boolean arrive(DeliveryStage lane) {
+	    if (remaining.decrementAndGet() > 0) {
+		return false;
+	    }
+	    try {
+		stage.listener.onConfiguration(configuration);
+	    } catch (RuntimeException e) {
+		e.printStackTrace();
+	    }
+	    DeliveryStage[] lanes = stage.lanes;
+	    for (int i = 0; i < lanes.length; i++) {
+		if (lanes[i] != lane) {
+		    lanes[i].resume();
+		}
+	    }
+	    return true;
+	}
+    }
+
+    public KeyedDeliveryStage(Listener listener,
+			      Executor executor,
+			      int capacity,
+			      int count) {
+	if (count <= 0) {
+	    throw new IllegalArgumentException("Number of lanes must be positive: " + count);
+	}
+	this.listener = listener;
+	this.lanes = new DeliveryStage[count];
+	for (int i = 0; i < count; i++) {
+	    lanes[i] = new DeliveryStage(listener, executor, capacity);
+	}
+    }
+
+    /**
+     * The application's Listener.
+     */
+    private Listener listener;
+
+    private DeliveryStage[] lanes;
+
+    /**
+     * Returns the number of events not yet processed,
+     * over all the lanes.
+     */
+    public int getBacklog() {
+	int backlog = 0;
+	for (int i = 0; i < lanes.length; i++) {
+	    backlog += lanes[i].getBacklog();
+	}
+	return backlog;
+    }
+
+    /**
+     * Returns the room left in the fullest lane, since
+     * any message may go to it.
+     */
+    public int getRoom() {
+	int room = Integer.MAX_VALUE;
+	for (int i = 0; i < lanes.length; i++) {
+	    room = Math.min(room, lanes[i].getRoom());
+	}
+	return room;
+    }
+
+    /**
+     * Returns the lane of the messages with
+     * the given key.
+     */
+    private DeliveryStage getLane(int key) {
+	return lanes[(key & 0x7FFFFFFF) % lanes.length];
+    }
+
+    public void onMessage(Message message) {
+	getLane(message.getKey()).onMessage(message);
+    }
+
+    public void onMessages(Message[] batch, int count) {
+	for (int i = 0; i < count; i++) {
+	    onMessage(batch[i]);
+	}
+    }
+
+    public void onConfiguration(Configuration configuration) {
+	Barrier barrier = new Barrier(this, configuration);
+	for (int i = 0; i < lanes.length; i++) {
+	    lanes[i].add(barrier);
+	}
+    }
+
+    public void onAlert(Alert alert) {
+	//alerts are not ordered with the messages
+	lanes[0].onAlert(alert);
+    }
+
+}
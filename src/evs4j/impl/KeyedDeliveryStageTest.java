@@ -0,0 +1,93 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package evs4j.impl;
+
+import java.util.Vector;
+import java.util.concurrent.Executor;
+import evs4j.Alert;
+import evs4j.Configuration;
+import evs4j.Listener;
+import evs4j.Processor;
+import evs4j.impl.message.RegularMessage;
+import evs4j.impl.message.TestMessages;
+
+public class KeyedDeliveryStageTest {
+
+    public static void main(String[] args) {
+	KeyedDeliveryStageTest test = new KeyedDeliveryStageTest();
+	test.testKeyedDeliveryStage();
+    }
+
+    public void testKeyedDeliveryStage() {
+	final Vector events = new Vector();
+	final Vector tasks = new Vector();
+	Listener listener = new Listener() {
+		public void onMessage(evs4j.Message message) {
+		    events.add(message.getId() + ":" + message.getKey());
+		}
+		public void onConfiguration(Configuration configuration) {
+		    events.add("conf");
+		}
+		public void onAlert(Alert alert) { }
+	    };
+	Executor executor = new Executor() {
+		public void execute(Runnable task) {
+		    tasks.add(task);
+		}
+	    };
+	KeyedDeliveryStage stage = new KeyedDeliveryStage(listener, executor, 16, 2);
+	SRPConnection conn = new SRPConnection(0, new Processor(1), "port=9999&transport=loopback");
+	Configuration configuration = new SRPConfiguration(conn, new ProcessorSet(new Processor(1)), 5L, false);
+	//4 is packed with a message for each lane
+	int[] keys = {0, 1, 0, -1, 0};
+	for (int i = 0; i < keys.length; i++) {
+	    RegularMessage m = TestMessages.create(new Processor(2), i + 1, false);
+	    m.setKey(keys[i]);
+	    if (i == 3) {
+		RegularMessage inner = (RegularMessage) conn.createMessage(false);
+		inner.setKey(3);
+		m.setPacked(true);
+		m.append(inner);
+		inner.setKey(2);
+		m.append(inner);
+	    }
+	    if (i == 4) {
+		stage.onConfiguration(configuration);
+	    }
+	    m.deliver(stage);
+	}
+	if (tasks.size() != 2 || stage.getBacklog() != 8) {
+	    throw new RuntimeException("Test failed");
+	}
+	//the first lane stops at the configuration
+	((Runnable) tasks.remove(0)).run();
+	if (!events.toString().equals("[1:0, 3:0, 4:2]") || tasks.size() != 1) {
+	    throw new RuntimeException("Test failed");
+	}
+	//the last lane to get there passes it on
+	((Runnable) tasks.remove(0)).run();
+	if (!events.toString().equals("[1:0, 3:0, 4:2, 2:1, 4:3, conf]") || tasks.size() != 1) {
+	    throw new RuntimeException("Test failed");
+	}
+	((Runnable) tasks.remove(0)).run();
+	if (!events.toString().equals("[1:0, 3:0, 4:2, 2:1, 4:3, conf, 5:0]") ||
+	    stage.getBacklog() != 0) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+}
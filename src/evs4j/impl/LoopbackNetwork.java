@@ -0,0 +1,139 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import evs4j.Processor;
+import evs4j.impl.message.Buffer;
+
+/**
+ * Simulates a network segment inside the JVM. All the
+ * LoopbackTransport objects created with the same port number
+ * are attached to the same LoopbackNetwork.
+ */
+public class LoopbackNetwork {
+
+    /**
+     * Maps port numbers (Integer) to LoopbackNetwork objects.
+     */
+    private static Map networks = new HashMap();
+
+    /**
+     * Returns the network for <em>port</em>, creating it
+     * if necessary, and attaches <em>transport</em> to it.
+     */
+    public static synchronized LoopbackNetwork attach(int port, LoopbackTransport transport) {
+	Integer key = Integer.valueOf(port);
+	LoopbackNetwork network = (LoopbackNetwork) networks.get(key);
+	if (network == null) {
+	    network = new LoopbackNetwork(port);
+	    networks.put(key, network);
+	}
+	network.add(transport);
+	return network;
+    }
+
+    /**
+     * Detaches <em>transport</em> from its network, and discards
+     * the network when no transports are left.
+     */
+    public static synchronized void detach(LoopbackNetwork network, LoopbackTransport transport) {
+	network.remove(transport);
+	if (network.transports.length == 0) {
+	    networks.remove(Integer.valueOf(network.port));
+	}
+    }
+
+    private int port;
+
+    private LoopbackNetwork(int port) {
+	this.port = port;
+	this.transports = new LoopbackTransport[0];
+	this.processors = new HashMap();
+    }
+
+    /**
+     * The transports attached to this network. The array
+     * is replaced (never modified) so that it can be
+     * read without locking.
+     */
+    private volatile LoopbackTransport[] transports;
+
+    /**
+     * Maps Processor objects to LoopbackTransport objects.
+     */
+    private Map processors;
+
+    private synchronized void add(LoopbackTransport transport) {
+	LoopbackTransport[] tmp = new LoopbackTransport[transports.length + 1];
+	System.arraycopy(transports, 0, tmp, 0, transports.length);
+	tmp[transports.length] = transport;
+	transports = tmp;
+	processors.put(transport.getProcessor(), transport);
+    }
+
+    private synchronized void remove(LoopbackTransport transport) {
+	int count = 0;
+	for (int i = 0; i < transports.length; i++) {
+	    if (transports[i] != transport) {
+		count++;
+	    }
+	}
+	LoopbackTransport[] tmp = new LoopbackTransport[count];
+	int j = 0;
+	for (int i = 0; i < transports.length; i++) {
+	    if (transports[i] != transport) {
+		tmp[j++] = transports[i];
+	    }
+	}
+	transports = tmp;
+	if (processors.get(transport.getProcessor()) == transport) {
+	    processors.remove(transport.getProcessor());
+	}
+    }
+
+    /**
+     * Delivers a copy of the packet in <em>buffer</em> to
+     * every transport on the network, including the sender.
+     */
+    public void broadcast(Buffer buffer) {
+	LoopbackTransport[] tmp = transports;
+	for (int i = 0; i < tmp.length; i++) {
+	    tmp[i].deliver(buffer.copy());
+	}
+    }
+
+    /**
+     * Delivers a copy of the packet in <em>buffer</em> to the
+     * transport of the processor <em>destination</em>, or to
+     * every transport if the processor is not on the network.
+     */
+    public void send(Buffer buffer, Processor destination) {
+	LoopbackTransport transport;
+	synchronized (this) {
+	    transport = (LoopbackTransport) processors.get(destination);
+	}
+	if (transport != null) {
+	    transport.deliver(buffer.copy());
+	} else {
+	    broadcast(buffer);
+	}
+    }
+
+}
@@ -0,0 +1,171 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import evs4j.Processor;
+import evs4j.impl.CompileTimeMacro;
+import evs4j.impl.message.Message;
+import evs4j.impl.message.RegularMessage;
+import evs4j.impl.message.IllegalMessageException;
+import evs4j.impl.message.MessageWriter;
+import evs4j.impl.message.MessageReader;
+import evs4j.impl.message.RegularTokenMessage;
+import evs4j.impl.message.Buffer;
+
+/**
+ * A Transport which connects the processors created in the same
+ * JVM with the same port number, without using the network. Packets
+ * are still encoded and decoded, so a ring running on this transport
+ * costs the same CPU as a real one, minus the kernel's network stack.
+ */
+public class LoopbackTransport implements Transport, CompileTimeMacro {
+
+    public LoopbackTransport(SRPConnection conn) {
+	this.conn = conn;
+	this.processor = conn.getProcessor();
+	this.inbox = new Queue();
+	this.batch = new Buffer[conn.getReceiveBatchSize()];
+	this.reader = new MessageReader(conn.getProcessorRegistry());
+	this.writer = new MessageWriter();
+	this.network = LoopbackNetwork.attach(conn.getPort(), this);
+    }
+
+    private SRPConnection conn;
+
+    private Processor processor;
+
+    public Processor getProcessor() {
+	return processor;
+    }
+
+    private LoopbackNetwork network;
+
+    /**
+     * The Buffer objects delivered to this transport
+     * and not yet received.
+     */
+    private Queue inbox;
+
+    /**
+     * Placed in the inbox by wakeup().
+     */
+    private static final Object WAKEUP = new Object();
+
+    private MessageWriter writer;
+
+    private MessageReader reader;
+
+    public void send(Message message) {
+	ByteBuffer packet = null;
+	if (message instanceof RegularMessage) {
+	    packet = ((RegularMessage) message).getStoredPacket();
+	}
+	Buffer buffer;
+	if (packet != null) {
+	    //a retransmission from the RetentionStore
+	    int length = packet.remaining();
+	    buffer = new Buffer(length, length);
+	    packet.get(buffer.getData(), 0, length);
+	} else {
+	    writer.writeMessage(message);
+	    buffer = message.getBuffer();
+	}
+	network.broadcast(buffer);
+    }
+
+    public void send(Message message, Processor destination) {
+	writer.writeMessage(message);
+	network.send(message.getBuffer(), destination);
+    }
+
+    /**
+     * This method is called by LoopbackNetwork.
+     */
+    public void deliver(Buffer buffer) {
+	inbox.add(buffer);
+    }
+
+    /**
+     * The packets received by the last call to receive().
+     */
+    private Buffer[] batch;
+
+    /**
+     * The number of packets in the batch.
+     */
+    private int count;
+
+    /**
+     * The index of the next packet to be decoded.
+     */
+    private int position;
+
+    public int receive(long timeout) {
+	count = 0;
+	position = 0;
+	long duration = timeout;
+	while (count < batch.length) {
+	    Object object = inbox.remove(duration);
+	    if (object == null || object == WAKEUP) {
+		break;
+	    }
+	    batch[count++] = (Buffer) object;
+	    //do not wait for the rest of the batch
+	    duration = -1;
+	}
+	return count;
+    }
+
+    public Message next() {
+	Buffer buffer = batch[position];
+	batch[position] = null;
+	position++;
+	Message message = null;
+	try {
+	    message = reader.readMessage(buffer);
+	} catch (IllegalMessageException e) {
+	    //skip this message
+	    //this should not happen
+	    if (DEBUG) {
+		e.printStackTrace();
+		conn.log("Illegal message - skipping");
+	    }
+	}
+	return message;
+    }
+
+    public void recycle(RegularTokenMessage token) {
+	reader.recycle(token);
+    }
+
+    public long getDrops() {
+	//the inbox is unbounded
+	return 0;
+    }
+
+    public void wakeup() {
+	inbox.add(WAKEUP);
+    }
+
+    public void close() throws IOException {
+	LoopbackNetwork.detach(network, this);
+    }
+
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl;
+
+import evs4j.Processor;
+
+/**
+ * Maps processor ids to canonical Processor objects, so that
+ * decoding a packet does not create any Processors and the hot
+ * paths can compare Processors by identity. Each connection has
+ * one registry, which starts with the connection's own Processor.
+ * This class is not thread-safe: it is used by the thread which
+ * receives the packets.
+ */
+public class ProcessorRegistry {
+
+    /**
+     * Open addressing hash table of Processors,
+     * keyed by value. The length is a power of two.
+     */
+    private Processor[] table;
+
+    private int size;
+
+    public ProcessorRegistry() {
+	this.table = new Processor[64];
+	this.size = 0;
+    }
+
+    public ProcessorRegistry(Processor processor) {
+	this();
+	put(processor);
+    }
+
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Returns the canonical Processor with the given value,
+     * creating it if it is not yet registered.
+     */
+    public Processor get(int value) {
+	Processor processor = lookup(value);
+	if (processor == null) {
+	    processor = new Processor(value);
+	    put(processor);
+	}
+	return processor;
+    }
+
+    /**
+     * Returns the canonical Processor equal to <em>processor</em>,
+     * which becomes canonical if none is registered yet.
+     */
+    public Processor intern(Processor processor) {
+	Processor canonical = lookup(processor.getValue());
+	if (canonical == null) {
+	    canonical = processor;
+	    put(canonical);
+	}
+	return canonical;
+    }
+
+    private Processor lookup(int value) {
+	int mask = table.length - 1;
+	int i = hash(value) & mask;
+	Processor processor;
+	while ((processor = table[i]) != null) {
+	    if (processor.getValue() == value) {
+		break;
+	    }
+	    i = (i + 1) & mask;
+	}
+	return processor;
+    }
+
+    private void put(Processor processor) {
+	if ((size + 1) * 2 > table.length) {
+	    //keep the table at most half full
+	    Processor[] old = table;
+	    table = new Processor[old.length * 2];
+	    size = 0;
+	    for (int i = 0; i < old.length; i++) {
+		if (old[i] != null) {
+		    put(old[i]);
+		}
+	    }
+	}
+	int mask = table.length - 1;
+	int i = hash(processor.getValue()) & mask;
+	while (table[i] != null) {
+	    i = (i + 1) & mask;
+	}
+	table[i] = processor;
+	size++;
+    }
+
+    private static int hash(int value) {
+	//spread consecutive ids
+	int h = value * 0x9E3779B9;
+	return h ^ (h >>> 16);
+    }
+
+}
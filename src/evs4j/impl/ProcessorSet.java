@@ -17,17 +17,30 @@
 
 package evs4j.impl;
 
-import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import evs4j.Processor;
 import evs4j.impl.message.CommitTokenMessage.CommitInfo;
 
-public class ProcessorSet implements Cloneable {
+/**
+ * A set of Processor objects, kept sorted by processor id in
+ * an int array, so that the set operations used by the membership
+ * algorithm are merges of two arrays. Except for the methods which
+ * return a new ProcessorSet, the operations do not create any objects
+ * unless a set has to grow.
+ */
+public class ProcessorSet {
 
     public ProcessorSet() {
-	processors = new TreeSet();
+	this(8);
+    }
+
+    public ProcessorSet(int capacity) {
+	values = new int[capacity];
+	processors = new Processor[capacity];
+	count = 0;
     }
 
     public ProcessorSet(Processor processor) {
@@ -36,16 +49,83 @@ public class ProcessorSet implements Cloneable {
     }
 
     /**
-     * Contains Processor objects.
+     * The processor ids, in increasing order, in the
+     * first <em>count</em> elements.
      */
-    private SortedSet processors;
+    private int[] values;
+
+    /**
+     * The Processor objects, in the same order as
+     * the values.
+     */
+    private Processor[] processors;
+
+    private int count;
 
     public int getCount() {
-	return processors.size();
+	return count;
+    }
+
+    /**
+     * Returns the Processor at <em>index</em>, where
+     * 0 is the Processor with the lowest id.
+     */
+    public Processor get(int index) {
+	if (index >= count) {
+	    throw new IndexOutOfBoundsException(String.valueOf(index));
+	}
+	return processors[index];
     }
 
     public Iterator iterator() {
-	return processors.iterator();
+	return new Iterator() {
+		private int index = 0;
+		public boolean hasNext() {
+		    return index < count;
+		}
+		public Object next() {
+		    if (index >= count) {
+			throw new NoSuchElementException();
+		    }
+		    return processors[index++];
+		}
+		public void remove() {
+		    throw new UnsupportedOperationException();
+		}
+	    };
+    }
+
+    /**
+     * Returns the index of the processor id <em>value</em>,
+     * or (-(insertion point) - 1) if it is not in the set.
+     */
+    private int indexOf(int value) {
+	int low = 0;
+	int high = count - 1;
+	while (low <= high) {
+	    int mid = (low + high) >>> 1;
+	    int v = values[mid];
+	    if (v < value) {
+		low = mid + 1;
+	    } else if (v > value) {
+		high = mid - 1;
+	    } else {
+		return mid;
+	    }
+	}
+	return -(low + 1);
+    }
+
+    private void ensureCapacity(int capacity) {
+	if (capacity > values.length) {
+	    int length = Math.max(capacity, values.length * 2);
+	    int[] tmp = new int[length];
+	    System.arraycopy(values, 0, tmp, 0, count);
+	    values = tmp;
+	    Processor[] tmp2 = new Processor[length];
+	    System.arraycopy(processors, 0, tmp2, 0, count);
+	    processors = tmp2;
+	}
     }
     
     /**
@@ -53,21 +133,104 @@ public class ProcessorSet implements Cloneable {
      * the set.
      */
     public void add(Processor processor) {
-	processors.add(processor);
+	int value = processor.getValue();
+	int index;
+	if (count == 0 || values[count - 1] < value) {
+	    //common case: processors are added in order
+	    index = count;
+	} else {
+	    index = indexOf(value);
+	    if (index >= 0) {
+		return;
+	    }
+	    index = -(index + 1);
+	}
+	ensureCapacity(count + 1);
+	System.arraycopy(values, index, values, index + 1, count - index);
+	System.arraycopy(processors, index, processors, index + 1, count - index);
+	values[index] = value;
+	processors[index] = processor;
+	count++;
     }
 
     /**
      * Merges <em>set</em> into this set.
      */
     public void add(ProcessorSet set) {
-	processors.addAll(set.getProcessors());
-    }    
+	if (contains(set)) {
+	    return;
+	}
+	ensureCapacity(count + set.count);
+	//merge from the end, then close the
+	//gaps left by the duplicates
+	int i = count - 1;
+	int j = set.count - 1;
+	int k = count + set.count - 1;
+	while (j >= 0) {
+	    if (i >= 0 && values[i] > set.values[j]) {
+		values[k] = values[i];
+		processors[k] = processors[i];
+		i--;
+	    } else {
+		if (i >= 0 && values[i] == set.values[j]) {
+		    i--;
+		}
+		values[k] = set.values[j];
+		processors[k] = set.processors[j];
+		j--;
+	    }
+	    k--;
+	}
+	//elements 0..i are in place, k+1.. are the merged tail
+	int n = i + 1;
+	int tail = count + set.count - (k + 1);
+	System.arraycopy(values, k + 1, values, n, tail);
+	System.arraycopy(processors, k + 1, processors, n, tail);
+	int newCount = n + tail;
+	for (int m = newCount; m < count + set.count; m++) {
+	    processors[m] = null;
+	}
+	count = newCount;
+    }
+
+    public void remove(Processor processor) {
+	int index = indexOf(processor.getValue());
+	if (index >= 0) {
+	    System.arraycopy(values, index + 1, values, index, count - index - 1);
+	    System.arraycopy(processors, index + 1, processors, index, count - index - 1);
+	    count--;
+	    processors[count] = null;
+	}
+    }
+
+    public void clear() {
+	for (int i = 0; i < count; i++) {
+	    processors[i] = null;
+	}
+	count = 0;
+    }
 
     public boolean equals(Object object) {
 	//do not catch ClassCastException
 	ProcessorSet s2 = (ProcessorSet) object;
 	ProcessorSet s1 = this;
-	return s1.getProcessors().equals(s2.getProcessors());
+	if (s1.count != s2.count) {
+	    return false;
+	}
+	for (int i = 0; i < s1.count; i++) {
+	    if (s1.values[i] != s2.values[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    public int hashCode() {
+	int h = 0;
+	for (int i = 0; i < count; i++) {
+	    h += values[i];
+	}
+	return h;
     }
     
     /**
@@ -75,15 +238,29 @@ public class ProcessorSet implements Cloneable {
      * set that are not also in the set <em>set</em>.
      */
     public ProcessorSet minus(ProcessorSet set) {
-	ProcessorSet r = new ProcessorSet();
-	Iterator iterator = iterator();
-	while (iterator.hasNext()) {
-	    Processor processor = (Processor) iterator.next();
-	    if (!set.contains(processor)) {
-		r.add(processor);
+	return minus(set, new ProcessorSet(count));
+    }
+
+    /**
+     * Like minus(ProcessorSet), but puts the result in
+     * <em>result</em>, which is returned.
+     */
+    public ProcessorSet minus(ProcessorSet set, ProcessorSet result) {
+	result.clear();
+	result.ensureCapacity(count);
+	int j = 0;
+	for (int i = 0; i < count; i++) {
+	    int value = values[i];
+	    while (j < set.count && set.values[j] < value) {
+		j++;
+	    }
+	    if (j == set.count || set.values[j] != value) {
+		result.values[result.count] = value;
+		result.processors[result.count] = processors[i];
+		result.count++;
 	    }
 	}
-	return r;
+	return result;
     }
 
     /**
@@ -91,15 +268,29 @@ public class ProcessorSet implements Cloneable {
      * set that are also in the set <em>set</em>.
      */
     public ProcessorSet intersect(ProcessorSet set) {
-	ProcessorSet r = new ProcessorSet();
-	Iterator iterator = iterator();
-	while (iterator.hasNext()) {
-	    Processor processor = (Processor) iterator.next();
-	    if (set.contains(processor)) {
-		r.add(processor);
+	return intersect(set, new ProcessorSet(count));
+    }
+
+    /**
+     * Like intersect(ProcessorSet), but puts the result in
+     * <em>result</em>, which is returned.
+     */
+    public ProcessorSet intersect(ProcessorSet set, ProcessorSet result) {
+	result.clear();
+	result.ensureCapacity(count);
+	int j = 0;
+	for (int i = 0; i < count; i++) {
+	    int value = values[i];
+	    while (j < set.count && set.values[j] < value) {
+		j++;
+	    }
+	    if (j < set.count && set.values[j] == value) {
+		result.values[result.count] = value;
+		result.processors[result.count] = processors[i];
+		result.count++;
 	    }
 	}
-	return r;
+	return result;
     }
 
     /**
@@ -107,25 +298,41 @@ public class ProcessorSet implements Cloneable {
      * are also in this ProcessorSet.
      */
     public boolean contains(ProcessorSet set) {
-	return processors.containsAll(set.getProcessors());
+	if (set.count > count) {
+	    return false;
+	}
+	int i = 0;
+	for (int j = 0; j < set.count; j++) {
+	    int value = set.values[j];
+	    while (i < count && values[i] < value) {
+		i++;
+	    }
+	    if (i == count || values[i] != value) {
+		return false;
+	    }
+	}
+	return true;
     }
 
     public boolean contains(Processor processor) {
-	return processors.contains(processor);
+	return indexOf(processor.getValue()) >= 0;
     }
 
     /**
      * Returns true iff the set is empty.
      */
     public boolean isEmpty() {
-	return getCount() == 0;
+	return count == 0;
     }
 
     /**
      * Returns the lowest processor id.
      */
     public Processor getCoordinator() {
-	return (Processor) processors.first();
+	if (count == 0) {
+	    throw new NoSuchElementException();
+	}
+	return processors[0];
     }
     
     /**
@@ -134,40 +341,37 @@ public class ProcessorSet implements Cloneable {
      * first processor id if there is none.
      */
     public Processor getNextProcessor(Processor processor) {
-	SortedSet tail = processors.tailSet(processor);
-	Processor nextProcessor;
-	if (tail.size() > 1) {
-	    Iterator iterator = tail.iterator();
-	    iterator.next();
-	    nextProcessor = (Processor) iterator.next();
-	} else if (tail.size() == 1) {
-	    nextProcessor = (Processor) processors.first();
-	} else {
+	int index = indexOf(processor.getValue());
+	if (index < 0) {
 	    throw new RuntimeException("Processor not in set: " + processor);
 	}
-	return nextProcessor;
+	index++;
+	if (index == count) {
+	    index = 0;
+	}
+	return processors[index];
     }
 
+    /**
+     * Returns a ProcessorSet with the same processors, which
+     * does not share any state with this one.
+     */
     public ProcessorSet copy() {
-	ProcessorSet s = null;
-	try {
-	    s = (ProcessorSet) clone();
-	} catch (CloneNotSupportedException e) {
-	    throw new RuntimeException("BUG");
-	}
+	ProcessorSet s = new ProcessorSet(count);
+	System.arraycopy(values, 0, s.values, 0, count);
+	System.arraycopy(processors, 0, s.processors, 0, count);
+	s.count = count;
 	return s;
     }
 
     public String toString() {
 	StringBuffer buf = new StringBuffer();
 	buf.append('{');
-	Iterator iterator = iterator();
-	while (iterator.hasNext()) {
-	    Processor processor = (Processor) iterator.next();
-	    buf.append(processor);
-	    if (iterator.hasNext()) {
+	for (int i = 0; i < count; i++) {
+	    if (i > 0) {
 		buf.append(", ");
 	    }
+	    buf.append(processors[i]);
 	}
 	buf.append('}');
 	return buf.toString();
@@ -182,21 +386,22 @@ public class ProcessorSet implements Cloneable {
      * of the array.
      */
     public CommitInfo[] getInfoArray() {
-	CommitInfo[] r = new CommitInfo[getCount()];
-	//sorted list of elements
-	Iterator iterator = iterator();
-	int i = 0;
-	while (iterator.hasNext()) {
-	    Processor processor = (Processor) iterator.next();
-	    r[i] = new CommitInfo(processor);
-	    i++;
+	CommitInfo[] r = new CommitInfo[count];
+	for (int i = 0; i < count; i++) {
+	    r[i] = new CommitInfo(processors[i]);
 	}
 	return r;
     }
 
+    /**
+     * Returns a new SortedSet of the Processor objects.
+     */
     public SortedSet getProcessors() {
-	return processors;
+	SortedSet set = new TreeSet();
+	for (int i = 0; i < count; i++) {
+	    set.add(processors[i]);
+	}
+	return set;
     }
 
 }
-
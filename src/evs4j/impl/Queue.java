@@ -124,8 +124,12 @@ public class Queue {
 		Entry previous = entry.previous;
 		if (previous != null) {
 		    previous.next = null;
+		} else {
+		    //queue is now empty
+		    first = null;
 		}
 		last = previous;
+		entry.value = null;
 		//add used entry to free list
 		entry.next = free;
 		free = entry;
@@ -147,6 +151,18 @@ public class Queue {
 	return object;
     }
 
+    /**
+     * Returns the element at the beginning of the queue
+     * without removing it, or null if the queue is empty.
+     */
+    public synchronized Object peek() {
+	Object object = null;
+	if (last != null) {
+	    object = last.value;
+	}
+	return object;
+    }
+
     public String toString() {
 	StringBuffer buf = new StringBuffer();
 	buf.append("(");
@@ -19,27 +19,50 @@ package evs4j.impl;
 
 import java.util.Vector;
 import java.util.Enumeration;
-import java.util.Set;
-import java.util.TreeSet;
 import evs4j.Listener;
+import evs4j.BatchListener;
 import evs4j.impl.CompileTimeMacro;
+import evs4j.impl.message.BufferPool;
+import evs4j.impl.message.MessageIdSet;
 import evs4j.impl.message.RegularMessage;
+import evs4j.impl.message.RetentionStore;
 
+/**
+ * The messages received on a configuration, from the first one not
+ * yet pruned to the last one received, in a ring buffer indexed by 
+ * message id. Adding a message, looking one up and detecting a
+ * duplicate take constant time, and the low water mark and the 
+ * delivery cursor only move forward.
+ */
 public class ReceivedList implements CompileTimeMacro {
 
     public ReceivedList(SRPConnection conn) {
 	this.conn = conn;
 	this.listener = conn.getListener();
-	this.length = DEFAULT_LENGTH;
-	//create free list
-	for (int i=0; i<length; i++) {
-	    Entry entry = new Entry();
-	    entry.next = free;
-	    free = entry;
+	if (listener instanceof BatchListener) {
+	    this.batchListener = (BatchListener) listener;
+	    this.batch = new Batch(batchListener);
+	}
+	if (listener instanceof ChannelDispatcher) {
+	    this.channels = (ChannelDispatcher) listener;
+	}
+	if (listener instanceof Stage) {
+	    this.stage = (Stage) listener;
 	}
+	this.messages = new RegularMessage[DEFAULT_LENGTH];
+	this.mask = DEFAULT_LENGTH - 1;
+	this.base = 1;
+	this.maxMessageId = 0;
+	this.gapStart = new int[8];
+	this.gapEnd = new int[8];
+	this.gaps = 0;
     }
 
-    public static final int DEFAULT_LENGTH = 50;
+    /**
+     * The initial capacity of the ring buffer
+     * (a power of two).
+     */
+    public static final int DEFAULT_LENGTH = 64;
     
     private SRPConnection conn;
 
@@ -47,34 +70,78 @@ public class ReceivedList implements CompileTimeMacro {
      * The object to which we deliver messages.
      */
     private Listener listener;
-    
-    private static class Entry {
-	public int messageId;
-	public RegularMessage message;
-	public Entry previous;
-	public Entry next;
-    }
-    
-    private int length;
 
-    public int length() {
-	return length;
+    /**
+     * The listener if it is a BatchListener, or null.
+     */
+    private BatchListener batchListener;
+
+    /**
+     * Collects the messages for the BatchListener.
+     */
+    private Batch batch;
+
+    /**
+     * The listener if it is a ChannelDispatcher, or null.
+     */
+    private ChannelDispatcher channels;
+
+    /**
+     * The listener if it is a Stage, or null.
+     */
+    private Stage stage;
+
+    /**
+     * True iff the last delivery stopped
+     * because the stage was filling up.
+     */
+    private boolean held;
+
+    /**
+     * Returns true iff messages are held back because
+     * the Listener is behind, so the ring must slow down.
+     */
+    public boolean isHeld() {
+	return held;
     }
 
     /**
-     * First element of the buffer.
+     * The ring buffer. The message with id <em>id</em>
+     * is at index (id &amp; mask), or the element is null
+     * if the message has not been received.
+     */
+    private RegularMessage[] messages;
+
+    private int mask;
+
+    /**
+     * The id of the first message not yet pruned.
      */
-    private Entry first;
+    private int base;
 
     /**
-     * Last element of the buffer.
+     * The largest id of any message received.
      */
-    private Entry last;
+    private int maxMessageId;
 
     /**
-     * Free list.
+     * The ranges of ids between lowMessageId and maxMessageId
+     * which have not been received, in increasing order. Gap i
+     * goes from gapStart[i] to gapEnd[i] (inclusive).
      */
-    private Entry free;
+    private int[] gapStart;
+
+    private int[] gapEnd;
+
+    private int gaps;
+
+    /**
+     * Returns the number of messages the ring
+     * buffer can hold without growing.
+     */
+    public int length() {
+	return messages.length;
+    }
 
     /**
      * Low water mark: the largest id such that 
@@ -95,92 +162,118 @@ public class ReceivedList implements CompileTimeMacro {
      */
     public void add(RegularMessage message) {
 	int messageId = message.getId();
-	Entry k;
-	for (k = last; k != null && k.previous != null; k = k.previous) {
-	    if (k.messageId <= messageId) {
-		break;
-	    }
-	}
-	if (k != null && k.messageId == messageId) {
+	if (messageId < base || get(messageId) != null) {
 	    //redundant
-	    //go to end of method
+	    return;
+	}
+	if (messageId - base >= messages.length) {
+	    grow(messageId - base + 1);
+	}
+	//the message may be the reader's flyweight
+	message = message.materialize();
+	//keep the buffer from being reused, or
+	//move the packet to a smaller one
+	BufferPool pool = conn.getBufferPool();
+	if (pool == null || !message.compact(pool)) {
+	    message.getBuffer().retain();
+	}
+	messages[messageId & mask] = message;
+	if (messageId > maxMessageId) {
+	    if (messageId > maxMessageId + 1) {
+		addGap(maxMessageId + 1, messageId - 1);
+	    }
+	    maxMessageId = messageId;
 	} else {
-	    //insert new message
-	    //get an Entry object
-	    Entry entry = null;
-	    if (free == null) {
-		entry = new Entry();
+	    fillGap(messageId);
+	}
+	//update low water mark
+	int low = (gaps > 0) ? gapStart[0] - 1 : maxMessageId;
+	if (low > lowMessageId) {
+	    lowMessageId = low;
+	    deliver();
+	}
+    }
+
+    /**
+     * Adds a gap after all the others.
+     */
+    private void addGap(int start, int end) {
+	if (gaps == gapStart.length) {
+	    int[] tmp = new int[gaps * 2];
+	    System.arraycopy(gapStart, 0, tmp, 0, gaps);
+	    gapStart = tmp;
+	    tmp = new int[gaps * 2];
+	    System.arraycopy(gapEnd, 0, tmp, 0, gaps);
+	    gapEnd = tmp;
+	}
+	gapStart[gaps] = start;
+	gapEnd[gaps] = end;
+	gaps++;
+    }
+
+    /**
+     * Removes <em>id</em> from the gap containing it.
+     */
+    private void fillGap(int id) {
+	//find the last gap starting at or before id
+	int low = 0;
+	int high = gaps - 1;
+	while (low < high) {
+	    int mid = (low + high + 1) >>> 1;
+	    if (gapStart[mid] <= id) {
+		low = mid;
 	    } else {
-		entry = free;
-		free = entry.next;
-	    }
-	    //initialize Entry object
-	    entry.messageId = messageId;
-	    entry.message = message;
-	    //set next/previous pointers below
-	    Entry previous = null;
-	    Entry next = null;
-	    if (k != null) {
-		int id = k.messageId;
-		if (id > messageId) {
-		    next = k;
-		    previous = k.previous;
-		    if (k == first) {
-			first = entry;
-		    }
-		} else if (id < messageId) {
-		    previous = k;
-		    next = k.next;
-		    if (k == last) {
-			last = entry;
-		    }
-		}
+		high = mid - 1;
 	    }
-	    entry.next = next;
-	    entry.previous = previous;
-	    //update neighbors
-	    if (next != null) {
-		next.previous = entry;
-	    }
-	    if (previous != null) {
-		previous.next = entry;
-	    }
-	    if (first == null) {
-		first = entry;
-	    }
-	    if (last == null) {
-		last = entry;
-	    }
-	    //update list length
-	    this.length++;
-	    //update safe message id
-	    int previousId = lowMessageId;
-	    int tmp = previousId;
-	    for (k = entry; k != null; k = k.next) {
-		int id = k.messageId;
-		if (id == previousId + 1) {
-		    tmp = id;
-		    previousId = tmp;
-		} else {
-		    //found a gap
-		    break;
-		}
-	    }
-	    this.lowMessageId = tmp;
-	    deliver();
+	}
+	int i = low;
+	int start = gapStart[i];
+	int end = gapEnd[i];
+	if (start == end) {
+	    //gap closed
+	    System.arraycopy(gapStart, i + 1, gapStart, i, gaps - i - 1);
+	    System.arraycopy(gapEnd, i + 1, gapEnd, i, gaps - i - 1);
+	    gaps--;
+	} else if (id == start) {
+	    gapStart[i] = id + 1;
+	} else if (id == end) {
+	    gapEnd[i] = id - 1;
+	} else {
+	    //split the gap in two
+	    addGap(0, 0);
+	    System.arraycopy(gapStart, i + 1, gapStart, i + 2, gaps - i - 2);
+	    System.arraycopy(gapEnd, i + 1, gapEnd, i + 2, gaps - i - 2);
+	    gapEnd[i] = id - 1;
+	    gapStart[i + 1] = id + 1;
+	    gapEnd[i + 1] = end;
 	}
     }
 
+    /**
+     * Makes room for at least <em>length</em>
+     * messages starting at the base.
+     */
+    private void grow(int length) {
+	int n = messages.length;
+	while (n < length) {
+	    n <<= 1;
+	}
+	RegularMessage[] tmp = new RegularMessage[n];
+	int newMask = n - 1;
+	for (int id = base; id <= maxMessageId; id++) {
+	    tmp[id & newMask] = messages[id & mask];
+	}
+	messages = tmp;
+	mask = newMask;
+    }
+
     /**
      * Returns the message for the given id, if any.
      */
     public RegularMessage get(int id) {
 	RegularMessage message = null;
-	for (Entry k = first; k != null; k = k.next) {
-	    if (k.messageId == id) {
-		message = k.message;
-		break;
-	    }
+	if (id >= base && id <= maxMessageId) {
+	    message = messages[id & mask];
 	}
 	return message;
     }
@@ -189,10 +282,17 @@ public class ReceivedList implements CompileTimeMacro {
 	return get(id.intValue());
     }
 
+    /**
+     * Returns the messages not yet pruned,
+     * in order of message id.
+     */
     public Enumeration getMessages() {
 	Vector vector = new Vector();
-	for (Entry k = first; k != null; k = k.next) {
-	    vector.addElement(k.message);
+	for (int id = base; id <= maxMessageId; id++) {
+	    RegularMessage message = messages[id & mask];
+	    if (message != null) {
+		vector.addElement(message);
+	    }
 	}
 	return vector.elements();
     }
@@ -207,6 +307,37 @@ public class ReceivedList implements CompileTimeMacro {
 	return maxDelivered;
     }
 
+    /**
+     * The id of the last message whose futures
+     * have completed their safe stage.
+     */
+    private int maxCompleted;
+
+    /**
+     * The id of the last message which has been moved into
+     * the RetentionStore, or did not need to be.
+     */
+    private int maxStored;
+
+    /**
+     * Moves the delivered messages which are not safe yet into
+     * the RetentionStore, because until they are safe they are
+     * only needed for retransmissions. This stops at the first
+     * message whose buffer is still retained, e.g. by a
+     * DeliveryStage, and tries again on the next call.
+     */
+    private void store() {
+	RetentionStore store = conn.getRetentionStore();
+	if (store == null) {
+	    return;
+	}
+	int id = Math.max(maxStored + 1, Math.max(base, safeMessageId + 1));
+	while (id <= maxDelivered && messages[id & mask].store(store)) {
+	    id++;
+	}
+	maxStored = id - 1;
+    }
+
     /**
      * The lowMessageId field of the token from
      * two rotations ago. This is the largest 
@@ -215,49 +346,69 @@ public class ReceivedList implements CompileTimeMacro {
      */
     private int safeMessageId;    
     
+    /**
+     * Sets the safe message id, and delivers the
+     * safe messages which were waiting for it.
+     */
     public void setSafeMessageId(int safeMessageId) {
 	this.safeMessageId = safeMessageId;
+	deliver();
     }
 
     /** 
      * This method delivers all messages that 
      * are ready to be delivered according to
-     * Extended Virtual Synchrony.
+     * Extended Virtual Synchrony: the messages after
+     * the last one delivered, up to the low water mark,
+     * stopping at the first safe message which is not 
+     * safe yet, or at the first one the Stage has no room
+     * for. A BatchListener gets them in one call.
      */
     private void deliver() {
-	int min = maxDelivered + 1;
-	int previousId = min - 1;
-	int last = 0;
-	for (Entry k = first; k != null; k = k.next) {
-	    int messageId = k.messageId;
-	    //start delivering after the last message
-	    //already delivered
-	    if (messageId >= min) {
-		//check that messages are in a sequence
-		if (messageId == previousId + 1) {
-		    RegularMessage message = k.message;
-		    boolean agreed = !message.getSafe();
-		    //if message is to be delivered as safe,
-		    //check that all processors have already
-		    //received the message
-		    if (agreed || messageId <= safeMessageId) {
-			last = messageId;
-			boolean recovered = message.getRecovered();
-			if (!recovered) {
-			    listener.onMessage(message);
-			} else {
-			    //discard (done)
-			}
-		    }
-		    previousId = messageId;
-		} else {
-		    //found gap
-		    break;
-		}
+	int first = maxDelivered + 1;
+	int id = first;
+	Listener target = (batchListener != null) ? batch : listener;
+	int room = (stage != null) ? stage.getRoom() : Integer.MAX_VALUE;
+	held = false;
+	while (id <= lowMessageId) {
+	    RegularMessage message = messages[id & mask];
+	    boolean agreed = !message.getSafe();
+	    //if message is to be delivered as safe,
+	    //check that all processors have already
+	    //received the message
+	    if (!agreed && id > safeMessageId) {
+		break;
 	    }
+	    boolean recovered = message.getRecovered();
+	    if (recovered) {
+		//discard (done)
+	    } else if (channels != null && !channels.isSubscribed(message.getChannel())) {
+		//nobody here listens to the channel
+	    } else if (room <= 0) {
+		//wait until the Listener catches up
+		held = true;
+		break;
+	    } else {
+		message.deliver(target);
+		room--;
+	    }
+	    maxDelivered = id;
+	    id++;
+	}
+	if (batchListener != null) {
+	    batch.flush();
+	}
+	for (id = first; id <= maxDelivered; id++) {
+	    messages[id & mask].completeDelivery();
+	}
+	store();
+	//the messages delivered and safe are done
+	int max = Math.min(maxDelivered, safeMessageId);
+	for (id = Math.max(maxCompleted + 1, base); id <= max; id++) {
+	    messages[id & mask].completeSafe();
 	}
-	if (last > 0) {
-	    maxDelivered = last;
+	if (max > maxCompleted) {
+	    maxCompleted = max;
 	}
 	if (DEBUG) conn.log("maxDelivered = " + maxDelivered);
     }
@@ -273,51 +424,51 @@ public class ReceivedList implements CompileTimeMacro {
 	    //only prune delivered messages
 	    max = maxDelivered;
 	}
-	//extract list of recylable links
-	Entry start = null;
-	Entry end = null;	
-	if (first != null && first.messageId <= max) {
-	    start = first;
-	    for (Entry k = start; k != null; k = k.next) {
-		if (k.messageId <= max) {
-		    end = k;
-		    //release reference to message
-		    k.message = null;
-		}
-	    }
+	for (int id = base; id <= max; id++) {
+	    int index = id & mask;
+	    //release reference to message
+	    messages[index].dispose();
+	    messages[index] = null;
 	}
-	if (end != null) {
-	    first = end.next;
-	    if (first == null) {
-		last = null;
-	    } else {
-		first.previous = null;
-	    }
-	    //add recycled to free list
-	    if (free != null) {
-		free.previous = end;
+	if (max >= base) {
+	    base = max + 1;
+	}
+    }
+
+    /**
+     * Removes all the messages not yet pruned, when the
+     * configuration is dropped, so that their packets go
+     * back to the BufferPool or the RetentionStore.
+     */
+    public void dispose() {
+	for (int id = base; id <= maxMessageId; id++) {
+	    int index = id & mask;
+	    if (messages[index] != null) {
+		messages[index].dispose();
+		messages[index] = null;
 	    }
-	    end.next = free;
-	    start.previous = null;
-	    free = start;
+	}
+	if (maxMessageId >= base) {
+	    base = maxMessageId + 1;
 	}
     }
 
     /**
-     * Returns a Set containing all the ids we
-     * are missing between <em>lowMessageId</em> and 
-     * <em>maxMessageId</em>.
+     * Adds to <em>missed</em> all the ids we are missing
+     * between <em>lowMessageId</em> and <em>maxMessageId</em>.
+     * Only the missing ids are visited.
      */
-    public Set getMissed(int maxMessageId) {
-	Set missed = new TreeSet();
-	for (int id = lowMessageId + 1; id <= maxMessageId; id++) {
-	    missed.add(new Integer(id));
+    public void getMissed(int maxMessageId, MessageIdSet missed) {
+	for (int i = 0; i < gaps && gapStart[i] <= maxMessageId; i++) {
+	    int end = Math.min(gapEnd[i], maxMessageId);
+	    for (int id = gapStart[i]; id <= end; id++) {
+		missed.add(id);
+	    }
 	}
-	//remove ids for messages we do have
-	for (Entry k = first; k != null; k = k.next) {
-	    missed.remove(new Integer(k.messageId));
+	//and the ones after the last we received
+	for (int id = this.maxMessageId + 1; id <= maxMessageId; id++) {
+	    missed.add(id);
 	}
-	return missed;
     }
 
     /**
@@ -326,21 +477,13 @@ public class ReceivedList implements CompileTimeMacro {
     public String toString() {
 	StringBuffer buf = new StringBuffer();
 	buf.append("\nmessages: ");
-	for (Entry k = first; k != null; k = k.next) {
-	    buf.append(k.messageId);
-	    buf.append(", ");
-	}
-	buf.append("\nfree: ");
-	for (Entry k = free; k != null; k = k.next) {
-	    buf.append(k.messageId);
-	    buf.append(", ");
+	for (int id = base; id <= maxMessageId; id++) {
+	    if (messages[id & mask] != null) {
+		buf.append(id);
+		buf.append(", ");
+	    }
 	}
 	return buf.toString();
     }
 
 }
-
-
-
-
-
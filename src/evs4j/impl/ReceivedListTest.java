@@ -0,0 +1,266 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package evs4j.impl;
+
+import java.util.Vector;
+import java.util.concurrent.Executor;
+import evs4j.Alert;
+import evs4j.BatchListener;
+import evs4j.Configuration;
+import evs4j.Listener;
+import evs4j.Processor;
+import evs4j.impl.message.MessageIdSet;
+import evs4j.impl.message.MessageWriter;
+import evs4j.impl.message.RegularMessage;
+import evs4j.impl.message.TestMessages;
+
+public class ReceivedListTest {
+
+    public static void main(String[] args) {
+	ReceivedListTest test = new ReceivedListTest();
+	test.testReceivedList();
+	test.testBatchListener();
+	test.testRetainedMessages();
+	test.testDispose();
+	test.testHeld();
+    }
+
+    private MessageWriter writer;
+
+    public ReceivedListTest() {
+	writer = new MessageWriter();
+    }
+
+    public void testReceivedList() {
+	SRPConnection conn = new SRPConnection(0, new Processor(1), "port=9999&transport=loopback");
+	final Vector delivered = new Vector();
+	conn.setListener(new Listener() {
+		public void onMessage(evs4j.Message message) {
+		    delivered.add(Integer.valueOf(message.getId()));
+		}
+		public void onConfiguration(Configuration configuration) { }
+		public void onAlert(Alert alert) { }
+	    });
+	ReceivedList received = new ReceivedList(conn);
+	//message 3 is safe, 2, 5 and 7 to 9 are missing
+	int[] ids = {1, 4, 3, 6, 10, 200};
+	for (int i = 0; i < ids.length; i++) {
+	    RegularMessage m = TestMessages.create(new Processor(2), ids[i], ids[i] == 3);
+	    writer.writeMessage(m);
+	    received.add(m);
+	}
+	MessageIdSet missed = new MessageIdSet();
+	received.getMissed(12, missed);
+	if (!missed.toString().equals("[2, 5, 7, 8, 9, 11, 12]") ||
+	    received.getLowMessageId() != 1 ||
+	    received.get(200) == null || received.get(199) != null) {
+	    throw new RuntimeException("Test failed");
+	}
+	RegularMessage m2 = TestMessages.create(new Processor(2), 2, false);
+	writer.writeMessage(m2);
+	received.add(m2);
+	//delivery stops before 3 until it is safe
+	if (received.getLowMessageId() != 4 ||
+	    !delivered.toString().equals("[1, 2]")) {
+	    throw new RuntimeException("Test failed");
+	}
+	received.setSafeMessageId(3);
+	received.prune();
+	if (!delivered.toString().equals("[1, 2, 3, 4]") ||
+	    received.get(3) != null || received.get(4) == null) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+
+    public void testBatchListener() {
+	final Vector batches = new Vector();
+	BatchListener listener = new BatchListener() {
+		public void onMessages(evs4j.Message[] batch, int count) {
+		    Vector ids = new Vector();
+		    for (int i = 0; i < count; i++) {
+			ids.add(Integer.valueOf(batch[i].getId()));
+		    }
+		    batches.add(ids);
+		}
+		public void onMessage(evs4j.Message message) {
+		    throw new RuntimeException("Test failed");
+		}
+		public void onConfiguration(Configuration configuration) {
+		    batches.add("conf");
+		}
+		public void onAlert(Alert alert) { }
+	    };
+	SRPConnection conn = new SRPConnection(0, new Processor(1), "port=9999&transport=loopback");
+	conn.setListener(listener);
+	ReceivedList received = new ReceivedList(conn);
+	//3 is packed with two messages
+	int[] ids = {1, 3, 4, 2};
+	for (int i = 0; i < ids.length; i++) {
+	    RegularMessage m = TestMessages.create(new Processor(2), ids[i], false);
+	    if (ids[i] == 3) {
+		RegularMessage inner = (RegularMessage) conn.createMessage(false);
+		m.setPacked(true);
+		m.append(inner);
+		m.append(inner);
+	    }
+	    writer.writeMessage(m);
+	    received.add(m);
+	}
+	if (!batches.toString().equals("[[1], [2, 3, 3, 4]]")) {
+	    throw new RuntimeException("Test failed");
+	}
+	//a configuration goes after the messages before it
+	Batch batch = new Batch(listener);
+	batch.onMessage(received.get(4));
+	batch.onConfiguration(null);
+	if (!batches.toString().equals("[[1], [2, 3, 3, 4], [4], conf]") ||
+	    batch.getCount() != 0) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+    public void testRetainedMessages() {
+	SRPConnection conn = new SRPConnection(0, new Processor(1), "port=9998&transport=loopback&retentionBudget=100000");
+	final Vector held = new Vector();
+	conn.setListener(new Listener() {
+		public void onMessage(evs4j.Message message) {
+		    //as a DeliveryStage does
+		    ((RegularMessage) message).retain();
+		    held.add(message);
+		}
+		public void onConfiguration(Configuration configuration) { }
+		public void onAlert(Alert alert) { }
+	    });
+	try {
+	    conn.open();
+	} catch (java.io.IOException e) {
+	    throw new RuntimeException(e);
+	}
+	try {
+	    ReceivedList received = new ReceivedList(conn);
+	    for (int id = 1; id <= 3; id++) {
+		RegularMessage m = TestMessages.create(new Processor(2), id, false);
+		writer.writeMessage(m);
+		received.add(m);
+		//as the reader does
+		m.release();
+	    }
+	    //the messages are still held
+	    for (int i = 0; i < held.size(); i++) {
+		RegularMessage m = (RegularMessage) held.get(i);
+		if (m.isStored()) {
+		    throw new RuntimeException("Test failed");
+		}
+	    }
+	    ((RegularMessage) held.get(0)).release();
+	    ((RegularMessage) held.get(2)).release();
+	    received.setSafeMessageId(0);
+	    //the store stops at the first message still held
+	    if (!((RegularMessage) held.get(0)).isStored() ||
+		((RegularMessage) held.get(2)).isStored()) {
+		throw new RuntimeException("Test failed");
+	    }
+	    ((RegularMessage) held.get(1)).release();
+	    received.setSafeMessageId(0);
+	    if (!((RegularMessage) held.get(1)).isStored() ||
+		!((RegularMessage) held.get(2)).isStored()) {
+		throw new RuntimeException("Test failed");
+	    }
+	} finally {
+	    conn.close();
+	}
+    }
+
+    public void testDispose() {
+	SRPConnection conn = new SRPConnection(0, new Processor(1), "port=9997&transport=loopback&retentionBudget=100000");
+	try {
+	    conn.open();
+	} catch (java.io.IOException e) {
+	    throw new RuntimeException(e);
+	}
+	try {
+	    ReceivedList received = new ReceivedList(conn);
+	    RegularMessage[] list = new RegularMessage[3];
+	    for (int id = 1; id <= 3; id++) {
+		RegularMessage m = TestMessages.create(new Processor(2), id, false);
+		writer.writeMessage(m);
+		received.add(m);
+		m.release();
+		list[id - 1] = m;
+	    }
+	    //reading a stored message leaves it in the store
+	    list[0].getData();
+	    if (!list[0].isStored()) {
+		throw new RuntimeException("Test failed");
+	    }
+	    //but a Listener which keeps it takes it out
+	    list[1].retain();
+	    if (list[1].isStored()) {
+		throw new RuntimeException("Test failed");
+	    }
+	    list[1].release();
+	    received.dispose();
+	    if (list[0].isStored() || list[2].isStored() ||
+		received.getMessages().hasMoreElements()) {
+		throw new RuntimeException("Test failed");
+	    }
+	} finally {
+	    conn.close();
+	}
+    }
+
+    public void testHeld() {
+	final Vector delivered = new Vector();
+	Listener listener = new Listener() {
+		public void onMessage(evs4j.Message message) {
+		    delivered.add(Integer.valueOf(message.getId()));
+		}
+		public void onConfiguration(Configuration configuration) { }
+		public void onAlert(Alert alert) { }
+	    };
+	final Vector tasks = new Vector();
+	Executor executor = new Executor() {
+		public void execute(Runnable task) {
+		    tasks.add(task);
+		}
+	    };
+	SRPConnection conn = new SRPConnection(0, new Processor(1), "port=9999&transport=loopback");
+	conn.setListener(new DeliveryStage(listener, executor, 4));
+	ReceivedList received = new ReceivedList(conn);
+	for (int id = 1; id <= 3; id++) {
+	    RegularMessage m = TestMessages.create(new Processor(2), id, false);
+	    writer.writeMessage(m);
+	    received.add(m);
+	}
+	//the stage is half full, so 3 waits
+	if (!received.isHeld() || received.getMaxDelivered() != 2 ||
+	    received.getLowMessageId() != 3) {
+	    throw new RuntimeException("Test failed");
+	}
+	((Runnable) tasks.remove(0)).run();
+	received.setSafeMessageId(0);
+	if (received.isHeld() || received.getMaxDelivered() != 3) {
+	    throw new RuntimeException("Test failed");
+	}
+	((Runnable) tasks.remove(0)).run();
+	if (!delivered.toString().equals("[1, 2, 3]")) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+}
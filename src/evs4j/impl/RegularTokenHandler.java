@@ -17,11 +17,10 @@
 
 package evs4j.impl;
 
-import java.util.Iterator;
-import java.util.Set;
 import evs4j.Processor;
-import evs4j.impl.Queue;
 import evs4j.impl.CompileTimeMacro;
+import evs4j.impl.message.Buffer;
+import evs4j.impl.message.MessageIdSet;
 import evs4j.impl.message.RegularMessage;
 import evs4j.impl.message.RegularTokenMessage;
 
@@ -34,7 +33,9 @@ public class RegularTokenHandler implements CompileTimeMacro {
     public RegularTokenHandler(SRPConnection conn, SRPConfiguration configuration) {
 	this.conn = conn;
 	this.processor = conn.getProcessor();
-	this.socket = conn.getSocketAdapter();
+	this.transport = conn.getTransport();
+	this.packing = conn.getPacking();
+	this.maxMessageSize = conn.getMaxMessageSize();
 	this.coordinator = configuration.getCoordinator();
 	this.configuration = configuration;
 	this.configurationId = configuration.getId();
@@ -47,7 +48,7 @@ public class RegularTokenHandler implements CompileTimeMacro {
 
     private SRPConnection conn;
 
-    private SocketAdapter socket;
+    private Transport transport;
 
     private SRPConfiguration configuration;
 
@@ -111,7 +112,7 @@ public class RegularTokenHandler implements CompileTimeMacro {
     /**
      * Takes the token that just arrived and uses the
      * information therein to broadcast missed messages
-     * and new messages. The Queue must contain RegularMessage 
+     * and new messages. The SendQueue must contain RegularMessage 
      * objects that are ready to be broadcast, except for the 
      * message id, which is assigned by this method. The forwarding 
      * of the token to the next processor is left to the calling
@@ -120,7 +121,7 @@ public class RegularTokenHandler implements CompileTimeMacro {
      * processor on the configuration has failed to receive a message too
      * many times.
      */
-    public RegularTokenMessage handle(RegularTokenMessage token, Queue sent)
+    public RegularTokenMessage handle(RegularTokenMessage token, SendQueue sent)
 	throws NoProgressException, MessageResetException, TokenResetException {
 	//id of token just received
 	int tokenId = token.getId();
@@ -137,6 +138,12 @@ public class RegularTokenHandler implements CompileTimeMacro {
 	    lastTokenId = tokenId;
 	    //adjust window size
 	    windowController.update(token);
+	    ReceivedList received = configuration.getReceived();
+	    if (received.isHeld()) {
+		//the Listener is behind, slow the
+		//whole ring down until it catches up
+		windowController.hold(token);
+	    }
 	    //broadcast new messages using flow control
 	    int backlog = sent.length();
 	    int allotted = flowController.update(backlog, token);
@@ -146,18 +153,26 @@ public class RegularTokenHandler implements CompileTimeMacro {
 	    allotted = allotted - retransmitted;
 	    int maxMessageId = token.getMaxMessageId();
 	    if (DEBUG) conn.log("maxMessageId: " + maxMessageId);
-	    ReceivedList received = configuration.getReceived();
 	    for (int i=0; i<allotted; i++) {
-		//do not wait for new messages
-		long duration = -1;
-		RegularMessage m = (RegularMessage) sent.remove(duration);
+		//does not wait for new messages
+		RegularMessage m = (RegularMessage) sent.poll();
+		if (m != null) {
+		    conn.releaseShare(m);
+		}
+		if (m != null && packing) {
+		    m = pack(m, sent);
+		}
 		if (m != null) {
 		    if (maxMessageId < MESSAGE_ID_LIMIT) {
 			maxMessageId++;
 			m.setId(maxMessageId);
 			m.setConfigurationId(configurationId);
-			socket.send(m);
+			transport.send(m);
+			Buffer buffer = m.getBuffer();
 			configuration.receive(m);
+			//drop the sender's reference, the
+			//received list has its own
+			buffer.release();
 		    } else {
 			//no more ids
 			//will make a new configuration
@@ -196,6 +211,63 @@ public class RegularTokenHandler implements CompileTimeMacro {
 	return nextToken;
     }
 
+    /**
+     * True iff small messages are packed together.
+     */
+    private boolean packing;
+
+    /**
+     * The maximum length of a payload.
+     */
+    private int maxMessageSize;
+
+    /**
+     * Returns a packed message containing <em>first</em> and as many
+     * of the messages after it in the SendQueue as fit, or <em>first</em>
+     * itself if no other message fits. Recovered messages are never
+     * packed, and only messages with the same delivery guarantee
+     * (agreed or safe) and on the same channel are packed together,
+     * in their original order.
+     */
+    private RegularMessage pack(RegularMessage first, SendQueue sent) {
+	RegularMessage packed = null;
+	if (!first.getRecovered()) {
+	    boolean safe = first.getSafe();
+	    int channel = first.getChannel();
+	    int length = RegularMessage.PACKED_HEADER_LENGTH + first.getLength();
+	    while (true) {
+		RegularMessage next = (RegularMessage) sent.peek();
+		if (next == null || next.getRecovered() || next.getSafe() != safe ||
+		    next.getChannel() != channel) {
+		    break;
+		}
+		length += RegularMessage.PACKED_HEADER_LENGTH + next.getLength();
+		if (length > maxMessageSize) {
+		    //packet is full
+		    break;
+		}
+		if (packed == null) {
+		    packed = (RegularMessage) conn.createMessage(safe);
+		    packed.setPacked(true);
+		    packed.setChannel(channel);
+		    packed.append(first);
+		    first.getBuffer().release();
+		}
+		packed.append(next);
+		next.getBuffer().release();
+		//only this thread removes from the queue
+		//so this is the message we peeked at
+		sent.poll();
+		conn.releaseShare(next);
+	    }
+	}
+	if (packed == null) {
+	    //nothing to pack it with
+	    packed = first;
+	}
+	return packed;
+    }
+
     /**
      * Broadcasts the requested retransmissions
      * and updates the token with the new retransmission
@@ -203,26 +275,27 @@ public class RegularTokenHandler implements CompileTimeMacro {
      */
     private int repair(RegularTokenMessage token, int allotted) {
 	//broadcast requested retransmissions
-	Set tokenMissed = token.getMissed();
+	MessageIdSet tokenMissed = token.getMissed();
 	int resent = 0;
 	ReceivedList received = configuration.getReceived();
-	Iterator iterator = tokenMissed.iterator();
-	while (iterator.hasNext()) {
-	    Integer id = (Integer) iterator.next();
+	int i = 0;
+	while (i < tokenMissed.size()) {
+	    int id = tokenMissed.get(i);
 	    RegularMessage m = received.get(id);
 	    if (m != null) {
 		if (DEBUG) conn.log("Retransmitting message: " + id);
-		socket.send(m);
-		tokenMissed.remove(id);
+		transport.send(m);
+		tokenMissed.removeAt(i);
 		resent++;
 		if (resent == allotted) {
 		    break;
 		}
+	    } else {
+		i++;
 	    }
 	}
 	//add our own retransmission requests
-	Set missed = received.getMissed(token.getMaxMessageId());
-	tokenMissed.addAll(missed);
+	received.getMissed(token.getMaxMessageId(), tokenMissed);
 	return resent;
     }
     
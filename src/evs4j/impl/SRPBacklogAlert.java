@@ -0,0 +1,54 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl;
+
+import evs4j.Alert;
+
+/**
+ * Used to tell the application that its Listener is falling behind:
+ * the delivery queue is half full, so the connection holds back the
+ * messages and slows the ring down until the Listener catches up.
+ * The alert is queued like the other events, so the Listener gets
+ * it on the delivery executor after the events before it.
+ */
+public class SRPBacklogAlert implements Alert {
+
+    private int backlog;
+    private int capacity;
+
+    /**
+     * Returns the number of events waiting to be processed.
+     */
+    public int getBacklog() { return backlog; }
+
+    /**
+     * Returns the capacity of the delivery queue.
+     */
+    public int getCapacity() { return capacity; }
+
+    public SRPBacklogAlert(int backlog, 
+			   int capacity) {
+	this.backlog = backlog;
+	this.capacity = capacity;
+    }
+
+    public String toString() {
+	return backlog + " events waiting for delivery (capacity " + capacity + ")";
+    }
+
+}
@@ -94,6 +94,11 @@ public class SRPCommit implements SRPState, CompileTimeMacro {
 	conn.resetJoinTimeout();
     }
 
+    public void failFutures(Throwable cause) {
+	//the connection's configuration
+	//holds all the messages
+    }
+
     public void tokenLossTimeoutExpired() {
 	conn.discover();
     }
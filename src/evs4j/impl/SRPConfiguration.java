@@ -61,12 +61,35 @@ public class SRPConfiguration implements Configuration {
 	return processors;
     }
 
-    public SortedSet getProcessors() {
-	return processors.getProcessors();
+    /**
+     * The SortedSet returned by getProcessors(), created
+     * the first time it is needed.
+     */
+    private SortedSet sortedSet;
+
+    public synchronized SortedSet getProcessors() {
+	if (sortedSet == null) {
+	    sortedSet = processors.getProcessors();
+	}
+	return sortedSet;
     }
 
+    /**
+     * This processor's successor on the ring, or null if this
+     * processor is not on the configuration.
+     */
+    private Processor successor;
+
     public Processor getNextProcessor(Processor processor) {
-	return processors.getNextProcessor(processor);
+	Processor nextProcessor;
+	if (processor == conn.getProcessor() && successor != null) {
+	    //the token is forwarded to the same processor
+	    //every time, no need to look for it
+	    nextProcessor = successor;
+	} else {
+	    nextProcessor = processors.getNextProcessor(processor);
+	}
+	return nextProcessor;
     }
 
     public Processor getCoordinator() {
@@ -89,7 +112,12 @@ public class SRPConfiguration implements Configuration {
 		ProcessorSet processors,
 		long id, 
 		boolean transitional) {
+	this.conn = conn;
 	this.processors = processors.copy();
+	Processor processor = conn.getProcessor();
+	if (this.processors.contains(processor)) {
+	    this.successor = this.processors.getNextProcessor(processor);
+	}
 	this.id = id;
 	this.received = new ReceivedList(conn);
 	this.handler = new RegularTokenHandler(conn, this); 
@@ -17,23 +17,29 @@
 
 package evs4j.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Inet6Address;
 import java.net.NetworkInterface;
 import java.net.UnknownHostException;
 import java.net.SocketException;
 import java.util.Enumeration;
 import java.util.LinkedList;
-import evs4j.impl.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import evs4j.Listener;
 import evs4j.Processor;
 import evs4j.Connection;
+import evs4j.DeliveryFuture;
 import evs4j.impl.CompileTimeMacro;
 import evs4j.impl.timeout.Timeout;
 import evs4j.impl.timeout.TokenDroppedTimeout;
 import evs4j.impl.timeout.TokenLossTimeout;
 import evs4j.impl.timeout.JoinTimeout;
 import evs4j.impl.timeout.ConsensusTimeout;
+import evs4j.impl.timeout.DropSampleTimeout;
 import evs4j.impl.message.Message;
 import evs4j.impl.message.TokenMessage;
 import evs4j.impl.message.RegularTokenMessage;
@@ -41,6 +47,8 @@ import evs4j.impl.message.CommitTokenMessage;
 import evs4j.impl.message.RegularMessage;
 import evs4j.impl.message.JoinMessage;
 import evs4j.impl.message.Buffer;
+import evs4j.impl.message.BufferPool;
+import evs4j.impl.message.RetentionStore;
 
 /**
  * This class implements the state machine for the Totem Single Ring 
@@ -81,6 +89,48 @@ public class SRPConnection implements Runnable,
     public static final String PROP_NIC = "nic";
     public static final String PROP_PORT = "port";
     public static final String PROP_DEBUG = "debug";
+    public static final String PROP_TRANSPORT = "transport";
+    public static final String PROP_RECEIVE_BATCH_SIZE = "receiveBatchSize";
+    public static final String PROP_PACKET_SIZE = "packetSize";
+    public static final String PROP_PACKING = "packing";
+    public static final String PROP_BUFFER_POOL = "bufferPool";
+    public static final String PROP_RETENTION_BUDGET = "retentionBudget";
+    public static final String PROP_RETENTION_DIRECTORY = "retentionDirectory";
+    public static final String PROP_DELIVERY_QUEUE_SIZE = "deliveryQueueSize";
+    public static final String PROP_DELIVERY_LANES = "deliveryLanes";
+    public static final String PROP_RRP = "rrp";
+    public static final String PROP_PEERS = "peers";
+    public static final String PROP_RECEIVE_BUFFER_SIZE = "receiveBufferSize";
+    public static final String PROP_SEND_BUFFER_SIZE = "sendBufferSize";
+    public static final String PROP_DROP_SAMPLE_INTERVAL = "dropSampleInterval";
+
+    /**
+     * Value of PROP_RRP for sending every packet on all
+     * the rings (the default).
+     */
+    public static final String RRP_ACTIVE = "active";
+
+    /**
+     * Value of PROP_RRP for sending each packet on one
+     * ring, taking turns.
+     */
+    public static final String RRP_PASSIVE = "passive";
+
+    /**
+     * Value of PROP_PACKET_SIZE for a packet size derived
+     * from the MTU of the nic.
+     */
+    public static final String PACKET_SIZE_MTU = "mtu";
+
+    /**
+     * Value of PROP_TRANSPORT for UDP multicast (the default).
+     */
+    public static final String TRANSPORT_UDP = "udp";
+
+    /**
+     * Value of PROP_TRANSPORT for the in-JVM LoopbackTransport.
+     */
+    public static final String TRANSPORT_LOOPBACK = "loopback";
     
     /**
      * Default consensus timeout (ms).
@@ -106,6 +156,17 @@ public class SRPConnection implements Runnable,
      * Default max window size.
      */
     public static final int DEFAULT_WINDOW_SIZE = 30;
+
+    /**
+     * Default interval between readings of the number
+     * of packets dropped by the receive buffers.
+     */
+    public static final long DEFAULT_DROP_SAMPLE_INTERVAL = 1000;
+
+    /**
+     * Default receive batch size.
+     */
+    public static final int DEFAULT_RECEIVE_BATCH_SIZE = 64;
    
     public void shiftToGather() {
 	SRPGather s = new SRPGather(this,
@@ -190,7 +251,7 @@ public class SRPConnection implements Runnable,
     
     public void broadcastJoinMessage(JoinMessage message) {
 	this.cachedJoinMessage = message;
-	socket.send(message);
+	transport.send(message);
     }
 
     private Timeout tokenLossTimeout;
@@ -237,6 +298,46 @@ public class SRPConnection implements Runnable,
     
     private Timeout consensusTimeout;
 
+    /**
+     * Reads the drop counters periodically, or has
+     * a duration of 0 if disabled.
+     */
+    private Timeout dropSampleTimeout;
+
+    public void setDropSampleInterval(long duration) {
+	dropSampleTimeout.setDuration(duration);
+    }
+
+    public long getDropSampleInterval() {
+	return dropSampleTimeout.getDuration();
+    }
+
+    /**
+     * The number of dropped packets at the
+     * last reading.
+     */
+    private long drops;
+
+    /**
+     * Gets the number of packets dropped by the receive
+     * buffers, tells the Listener if there are new ones,
+     * and schedules the next reading. The readings stop if
+     * the transport cannot count drops. The transport must
+     * not block, because this runs on the protocol thread.
+     */
+    public void sampleDrops() {
+	long total = transport.getDrops();
+	if (total >= 0) {
+	    if (total > drops) {
+		SRPDropAlert alert = new SRPDropAlert(total - drops, total);
+		if (DEBUG) log(alert.toString());
+		listener.onAlert(alert);
+	    }
+	    drops = total;
+	    dropSampleTimeout.reset();
+	}
+    }
+
     public void setConsensusTimeout(long duration) {
 	consensusTimeout.setDuration(duration);
     }
@@ -266,6 +367,20 @@ public class SRPConnection implements Runnable,
 	return windowSize;
     }
 
+    /**
+     * The maximum number of packets taken from the transport
+     * before the timeouts are checked again.
+     */
+    private int receiveBatchSize;
+
+    public void setReceiveBatchSize(int receiveBatchSize) {
+	this.receiveBatchSize = receiveBatchSize;
+    }
+
+    public int getReceiveBatchSize() {
+	return receiveBatchSize;
+    }
+
     /**
      * Default value for the maximum size of the input buffer
      * for regular messages.
@@ -273,21 +388,26 @@ public class SRPConnection implements Runnable,
     public static final int DEFAULT_INPUT_BUFFER_SIZE = 1000;
 
     /**
-     * Default socket timeout in milliseconds.
-     * It should be a small number, so that if we
-     * are not receiving messages we move on
-     * to other tasks.
+     * The protocol loop waits on a Selector until the next
+     * timeout is due, so there is no socket timeout any more.
+     * @deprecated The value is ignored.
      */
-    private int socketTimeout;
-
+    @Deprecated
     public int getSocketTimeout() {
-	return socketTimeout;
+	return DEFAULT_SOCKET_TIMEOUT;
     }
 
+    /**
+     * @deprecated The value is ignored.
+     */
+    @Deprecated
     public void setSocketTimeout(int socketTimeout) {
-	this.socketTimeout = socketTimeout;
     }
 
+    /**
+     * @deprecated The socket timeout is ignored.
+     */
+    @Deprecated
     public static final int DEFAULT_SOCKET_TIMEOUT = 1;
 
     /**
@@ -301,12 +421,34 @@ public class SRPConnection implements Runnable,
     }
 
     /**
-     * Network interface used for multicasting.
+     * Addresses of the processors to send broadcasts to
+     * when multicast is not available, or null to use 
+     * multicast.
+     */
+    private InetSocketAddress[] peers;
+
+    public InetSocketAddress[] getPeers() {
+	return peers;
+    }
+
+    /**
+     * Network interfaces used for multicasting, one
+     * for each ring. There is more than one only
+     * when using the redundant ring protocol.
+     */
+    private NetworkInterface[] nics;
+
+    public NetworkInterface[] getNics() {
+	return nics;
+    }
+
+    /**
+     * One of RRP_ACTIVE and RRP_PASSIVE.
      */
-    private NetworkInterface nic;
+    private String rrp;
 
-    public NetworkInterface getNic() {
-	return nic;
+    public String getRRP() {
+	return rrp;
     }
 
     /**
@@ -331,6 +473,35 @@ public class SRPConnection implements Runnable,
 	this.maxAccepted = maxAccepted;
     }
 
+    /**
+     * The size in bytes of the socket receive buffers,
+     * or 0 to hold maxAccepted packets.
+     */
+    private int receiveBufferSize;
+
+    public int getReceiveBufferSize() {
+	int size = receiveBufferSize;
+	if (size == 0) {
+	    size = maxAccepted * packetSize;
+	}
+	return size;
+    }
+
+    /**
+     * The size in bytes of the socket send buffers,
+     * or 0 to use the operating system's default.
+     */
+    private int sendBufferSize;
+
+    public int getSendBufferSize() {
+	return sendBufferSize;
+    }
+
+    /**
+     * One of TRANSPORT_UDP and TRANSPORT_LOOPBACK.
+     */
+    private String transportName;
+
     private boolean debug;
 
     public void setDebug(boolean debug) {
@@ -341,7 +512,7 @@ public class SRPConnection implements Runnable,
 
     public evs4j.Message createMessage(boolean safe) {
 	RegularMessage m = new RegularMessage(Message.MAGIC_NUMBER,
-					      new Buffer(0),
+					      createBuffer(),
 					      processor,
 					      0L,
 					      0,
@@ -352,9 +523,117 @@ public class SRPConnection implements Runnable,
     }
 
     public int getMaxMessageSize() {
-	return RegularMessage.MAX_PAYLOAD_SIZE;
+	return RegularMessage.getMaxPayloadSize(packetSize);
+    }
+
+    /**
+     * The maximum size of a packet, or 0 if it must
+     * be derived from the MTU of the nic.
+     */
+    private int packetSize;
+
+    public int getPacketSize() {
+	return packetSize;
+    }
+
+    /**
+     * True iff small messages are packed together
+     * into one packet.
+     */
+    private boolean packing;
+
+    public void setPacking(boolean packing) {
+	this.packing = packing;
+    }
+
+    public boolean getPacking() {
+	return packing;
+    }
+
+    /**
+     * True iff Buffers are taken from, and returned to,
+     * a BufferPool.
+     */
+    private boolean pooling;
+
+    /**
+     * The BufferPool, or null if not pooling.
+     */
+    private BufferPool pool;
+
+    public BufferPool getBufferPool() {
+	return pool;
+    }
+
+    /**
+     * The number of bytes of direct memory used to hold
+     * delivered messages which may still have to be
+     * retransmitted, or 0 to keep them on the heap.
+     */
+    private long retentionBudget;
+
+    /**
+     * The directory of the file to which the RetentionStore
+     * spills, or null for the default temporary directory.
+     */
+    private File retentionDirectory;
+
+    /**
+     * The RetentionStore, or null if the messages
+     * are kept on the heap.
+     */
+    private RetentionStore store;
+
+    public RetentionStore getRetentionStore() {
+	return store;
+    }
+
+    /**
+     * Returns a new Buffer large enough for any packet.
+     */
+    public Buffer createBuffer() {
+	Buffer buffer;
+	if (pool != null) {
+	    buffer = pool.get(packetSize);
+	} else {
+	    buffer = new Buffer(0, packetSize);
+	}
+	return buffer;
     }
     
+    /**
+     * The Executor on which the Listener is called,
+     * or null to call it on the connection's thread.
+     */
+    private Executor deliveryExecutor;
+
+    /**
+     * Makes the connection pass its events to the Listener
+     * on a thread of <em>executor</em>, in order, through a
+     * DeliveryStage. This method must be called before open().
+     * The DeliveryFuture of a message then completes when the
+     * message is queued, not when the Listener has processed it,
+     * and the message is moved into the RetentionStore only
+     * after the Listener has returned.
+     */
+    public void setDeliveryExecutor(Executor executor) {
+	this.deliveryExecutor = executor;
+    }
+
+    public static final int DEFAULT_DELIVERY_QUEUE_SIZE = 1024;
+
+    /**
+     * The number of events the DeliveryStage holds
+     * before it alerts the Listener.
+     */
+    private int deliveryQueueSize;
+
+    /**
+     * The number of lanes the messages are spread over
+     * by key, or 1 to deliver every message in order.
+     */
+    private int deliveryLanes;
+
     private Listener listener;
 
     public Listener getListener() {
@@ -365,25 +644,48 @@ public class SRPConnection implements Runnable,
 	this.listener = listener;
     }
 
+    /**
+     * The Listeners of the channels other than 0,
+     * or null if there are none.
+     */
+    private ChannelDispatcher channels;
+
+    public void setListener(int channel, Listener listener) {
+	if (channel == 0) {
+	    setListener(listener);
+	    return;
+	}
+	if (channels == null) {
+	    channels = new ChannelDispatcher();
+	}
+	channels.setListener(channel, listener);
+    }
+
     public SRPConnection(long storedConfigurationId,
 			 Processor processor,
 			 String props) {
 	this.storedConfigurationId = storedConfigurationId;
 	this.processor = processor;
-	this.sent = new Queue();
+	this.registry = new ProcessorRegistry(processor);
 	//defaults
 	tokenDroppedTimeout = new TokenDroppedTimeout(DEFAULT_TOKEN_DROPPED_TIMEOUT);
 	tokenLossTimeout = new TokenLossTimeout(DEFAULT_TOKEN_LOSS_TIMEOUT);
 	joinTimeout = new JoinTimeout(DEFAULT_JOIN_TIMEOUT);
 	consensusTimeout = new ConsensusTimeout(DEFAULT_CONSENSUS_TIMEOUT);
+	dropSampleTimeout = new DropSampleTimeout(DEFAULT_DROP_SAMPLE_INTERVAL);
 	if (DEBUG) log("Alarms created");
 	setMaxAccepted(DEFAULT_INPUT_BUFFER_SIZE);
-	setSocketTimeout(DEFAULT_SOCKET_TIMEOUT);
 	setMaxSent(DEFAULT_MAX_SENT);
 	setWindowSize(DEFAULT_WINDOW_SIZE);
+	setReceiveBatchSize(DEFAULT_RECEIVE_BATCH_SIZE);
+	packetSize = Message.DEFAULT_PACKET_SIZE;
+	rrp = RRP_ACTIVE;
+	transportName = TRANSPORT_UDP;
 	//passing Listener to constructor would preclude
 	//creating chains of Connection+Listener objects
 	setListener(new DefaultListener());
+	deliveryQueueSize = DEFAULT_DELIVERY_QUEUE_SIZE;
+	deliveryLanes = 1;
 	//parse properties
 	if (props == null) {
 	    throw new IllegalArgumentException("Property string is null");
@@ -404,6 +706,17 @@ public class SRPConnection implements Runnable,
 		    setTokenLossTimeout(Long.parseLong(value));
 		} else if (name.equals(PROP_WINDOW_SIZE)) {
 		    setWindowSize(Integer.parseInt(value));
+		} else if (name.equals(PROP_RECEIVE_BATCH_SIZE)) {
+		    setReceiveBatchSize(Integer.parseInt(value));
+		} else if (name.equals(PROP_PACKET_SIZE)) {
+		    if (value.equals(PACKET_SIZE_MTU)) {
+			packetSize = 0;
+		    } else {
+			packetSize = Integer.parseInt(value);
+			if (packetSize <= RegularMessage.OVERHEAD || packetSize > Message.MAX_PACKET_SIZE) {
+			    throw new IllegalArgumentException("Invalid " + PROP_PACKET_SIZE + ": " + value);
+			}
+		    }
 		} else if (name.equals(PROP_IP)) {
 		    try {
 			ip = InetAddress.getByName(value);
@@ -414,22 +727,65 @@ public class SRPConnection implements Runnable,
 			throw new IllegalArgumentException("Invalid ip: " + value, e);
 		    }
 		} else if (name.equals(PROP_NIC)) {
-		    try {
-			nic = NetworkInterface.getByName(value);
-			if (nic == null) {
-			    String[] netAndMask = value.split("/");
-			    nic = Util.findNetworkInterface(netAndMask[0], netAndMask[1]);
+		    //one nic per ring
+		    String[] values = value.split(",");
+		    if (values.length > SocketAdapter.MAX_RINGS) {
+			throw new IllegalArgumentException("Too many nics: " + value);
+		    }
+		    nics = new NetworkInterface[values.length];
+		    for (int j = 0; j < values.length; j++) {
+			try {
+			    NetworkInterface nic = NetworkInterface.getByName(values[j]);
 			    if (nic == null) {
-				throw new IllegalArgumentException("No such nic: " + value);
+				String[] netAndMask = values[j].split("/");
+				nic = Util.findNetworkInterface(netAndMask[0], netAndMask[1]);
+				if (nic == null) {
+				    throw new IllegalArgumentException("No such nic: " + values[j]);
+				}
 			    }
+			    nics[j] = nic;
+			} catch (SocketException e) {
+			    throw new IllegalArgumentException("Bad nic?: " + values[j], e);
 			}
-		    } catch (SocketException e) {
-			throw new IllegalArgumentException("Bad nic?: " + value, e);
 		    }
+		} else if (name.equals(PROP_PEERS)) {
+		    String[] values = value.split(",");
+		    peers = new InetSocketAddress[values.length];
+		    for (int j = 0; j < values.length; j++) {
+			peers[j] = parsePeer(values[j]);
+		    }
+		} else if (name.equals(PROP_RRP)) {
+		    if (!value.equals(RRP_ACTIVE) && !value.equals(RRP_PASSIVE)) {
+			throw new IllegalArgumentException("Invalid " + PROP_RRP + ": " + value);
+		    }
+		    rrp = value;
 		} else if (name.equals(PROP_PORT)) {
 		    port = Integer.parseInt(value);
+		} else if (name.equals(PROP_RECEIVE_BUFFER_SIZE)) {
+		    receiveBufferSize = Integer.parseInt(value);
+		} else if (name.equals(PROP_SEND_BUFFER_SIZE)) {
+		    sendBufferSize = Integer.parseInt(value);
+		} else if (name.equals(PROP_DROP_SAMPLE_INTERVAL)) {
+		    setDropSampleInterval(Long.parseLong(value));
+		} else if (name.equals(PROP_RETENTION_BUDGET)) {
+		    retentionBudget = Long.parseLong(value);
+		} else if (name.equals(PROP_RETENTION_DIRECTORY)) {
+		    retentionDirectory = new File(value);
+		} else if (name.equals(PROP_DELIVERY_QUEUE_SIZE)) {
+		    deliveryQueueSize = Integer.parseInt(value);
+		} else if (name.equals(PROP_DELIVERY_LANES)) {
+		    deliveryLanes = Integer.parseInt(value);
+		} else if (name.equals(PROP_BUFFER_POOL)) {
+		    pooling = Boolean.valueOf(value).booleanValue();
+		} else if (name.equals(PROP_PACKING)) {
+		    setPacking(Boolean.valueOf(value).booleanValue());
 		} else if (name.equals(PROP_DEBUG)) {
 		    setDebug((new Boolean(value)).booleanValue());
+		} else if (name.equals(PROP_TRANSPORT)) {
+		    if (!value.equals(TRANSPORT_UDP) && !value.equals(TRANSPORT_LOOPBACK)) {
+			throw new IllegalArgumentException("Invalid transport: " + value);
+		    }
+		    transportName = value;
 		} else {
 		    throw new IllegalArgumentException("Invalid property: " + name);
 		}
@@ -440,10 +796,43 @@ public class SRPConnection implements Runnable,
 	if (port == 0) {
 	    throw new IllegalArgumentException("Missing required property: " + PROP_PORT);
 	}
-	if (ip == null) {
+	if (receiveBatchSize < 1) {
+	    throw new IllegalArgumentException("Invalid " + PROP_RECEIVE_BATCH_SIZE + ": " + receiveBatchSize);
+	}
+	if (receiveBufferSize < 0) {
+	    throw new IllegalArgumentException("Invalid " + PROP_RECEIVE_BUFFER_SIZE + ": " + receiveBufferSize);
+	}
+	if (sendBufferSize < 0) {
+	    throw new IllegalArgumentException("Invalid " + PROP_SEND_BUFFER_SIZE + ": " + sendBufferSize);
+	}
+	if (retentionBudget < 0) {
+	    throw new IllegalArgumentException("Invalid " + PROP_RETENTION_BUDGET + ": " + retentionBudget);
+	}
+	if (deliveryQueueSize < 1) {
+	    throw new IllegalArgumentException("Invalid " + PROP_DELIVERY_QUEUE_SIZE + ": " + deliveryQueueSize);
+	}
+	if (deliveryLanes < 1) {
+	    throw new IllegalArgumentException("Invalid " + PROP_DELIVERY_LANES + ": " + deliveryLanes);
+	}
+	if (transportName.equals(TRANSPORT_LOOPBACK)) {
+	    //no network needed
+	    if (packetSize == 0) {
+		packetSize = Message.DEFAULT_PACKET_SIZE;
+	    }
+	    return;
+	}
+	if (ip == null && peers == null) {
 	    throw new IllegalArgumentException("Missing required property: " + PROP_IP);
 	}
-	if (nic == null) {
+	if (ip != null && peers != null) {
+	    throw new IllegalArgumentException("Properties " + PROP_IP + " and " + PROP_PEERS + 
+					       " cannot be used together");
+	}
+	if (peers != null && nics != null && nics.length > 1) {
+	    throw new IllegalArgumentException("Property " + PROP_PEERS + " cannot be used with more than one " + 
+					       PROP_NIC);
+	}
+	if (nics == null) {
 	    LinkedList nics = new LinkedList();
 	    try {
 		Enumeration e = NetworkInterface.getNetworkInterfaces();
@@ -460,19 +849,63 @@ public class SRPConnection implements Runnable,
 		} else if (nics.size() == 0) {
 		    throw new RuntimeException("You have no usable network adapters");
 		} else {
-		    nic = (NetworkInterface) nics.get(0);
+		    this.nics = new NetworkInterface[] {(NetworkInterface) nics.get(0)};
 		}
 	    } catch (SocketException e) {
 		throw new IllegalArgumentException("Cannot determine network adapter. " +
 						   "Please pass it in explicitly.", e);
 	    }
 	}
+	if (packetSize == 0) {
+	    //largest udp payload that fits in a frame
+	    //on every ring
+	    InetAddress address = (ip != null) ? ip : peers[0].getAddress();
+	    int headers = (address instanceof Inet6Address) ? 48 : 28;
+	    packetSize = Message.MAX_PACKET_SIZE;
+	    for (int i = 0; i < nics.length; i++) {
+		NetworkInterface nic = nics[i];
+		try {
+		    packetSize = Math.min(nic.getMTU() - headers, packetSize);
+		} catch (SocketException e) {
+		    throw new IllegalArgumentException("Cannot determine the MTU of nic: " + nic.getName(), e);
+		}
+		if (packetSize <= RegularMessage.OVERHEAD) {
+		    throw new IllegalArgumentException("MTU too small: " + nic.getName());
+		}
+	    }
+	}
+	if (DEBUG) log("Packet size: " + packetSize);
+    }
+
+    /**
+     * Parses a peer address of the form host:port.
+     */
+    private static InetSocketAddress parsePeer(String value) {
+	int i = value.lastIndexOf(':');
+	if (i < 0) {
+	    throw new IllegalArgumentException("Invalid peer: " + value);
+	}
+	String host = value.substring(0, i);
+	if (host.startsWith("[") && host.endsWith("]")) {
+	    //ipv6 literal
+	    host = host.substring(1, host.length() - 1);
+	}
+	InetSocketAddress address;
+	try {
+	    address = new InetSocketAddress(host, Integer.parseInt(value.substring(i + 1)));
+	} catch (IllegalArgumentException e) {
+	    throw new IllegalArgumentException("Invalid peer: " + value, e);
+	}
+	if (address.isUnresolved()) {
+	    throw new IllegalArgumentException("Unknown peer: " + value);
+	}
+	return address;
     }
 
-    private SocketAdapter socket;
+    private Transport transport;
 
-    public SocketAdapter getSocketAdapter() {
-	return socket;
+    public Transport getTransport() {
+	return transport;
     }
 
     private TokenMessage cachedToken;
@@ -483,6 +916,17 @@ public class SRPConnection implements Runnable,
     }
 
     public void forwardToken(TokenMessage token, Processor nextProcessor) {	
+	if (token != cachedToken) {
+	    //keep the buffer from being reused
+	    token.getBuffer().retain();
+	    if (cachedToken != null) {
+		cachedToken.getBuffer().release();
+		if (cachedToken instanceof RegularTokenMessage) {
+		    //let the transport decode into it
+		    transport.recycle((RegularTokenMessage) cachedToken);
+		}
+	    }
+	}
 	this.cachedToken = token;
 	this.nextProcessor = nextProcessor;
 	token.setDestination(nextProcessor);
@@ -493,7 +937,7 @@ public class SRPConnection implements Runnable,
 		log("Forwarding commit token: " + token);
 	    }
 	}
-	socket.send(token);
+	transport.send(token, nextProcessor);
     }
 
     private SRPState state;
@@ -503,11 +947,26 @@ public class SRPConnection implements Runnable,
     }
 
     public void setState(SRPState state) {
+	if (this.state instanceof SRPRecovery) {
+	    //the recovery has left one of its
+	    //configurations behind
+	    ((SRPRecovery) this.state).dropConfiguration(configuration);
+	}
 	this.state = state;
 	if (DEBUG) log("Switched to " + state);
     }
 
     private Processor processor;
+
+    /**
+     * The canonical Processor objects, starting with
+     * this processor's.
+     */
+    private ProcessorRegistry registry;
+
+    public ProcessorRegistry getProcessorRegistry() {
+	return registry;
+    }
     
     public Processor getProcessor() {
 	return processor;
@@ -530,8 +989,13 @@ public class SRPConnection implements Runnable,
      */
     private int maxSent;
 
+    /**
+     * Sets the capacity of the out queue. This method
+     * must be called before the connection is opened.
+     */
     public void setMaxSent(int maxSent) {
 	this.maxSent = maxSent;
+	this.sent = new SendQueue(maxSent);
     }
 
     public static final int DEFAULT_MAX_SENT = 100;
@@ -539,33 +1003,101 @@ public class SRPConnection implements Runnable,
     /**
      * The queue of outgoing RegularMessages.
      */
-    private Queue sent;
+    private SendQueue sent;
 
-    public Queue getSent() {
+    public SendQueue getSent() {
 	return sent;
     }
 
-    public void send(evs4j.Message message) {
-	Message m = (Message) message;
-	while (true) {
-	    if (sent.length() < maxSent) {
-		//there is room in the queue
-		sent.add(m);
-		break;
-	    } else {
-		//queue is full 
-		//queue grows only in
-		//COMMIT and RECOVERY states
-		try {
-		    //any small duration works here
-		    Thread.sleep(1);
-		} catch (InterruptedException e) {
-		    //ignore
-		}
+    /**
+     * The number of places in the out queue each channel
+     * may take, indexed by channel, or null where there is
+     * no limit.
+     */
+    private Semaphore[] shares = new Semaphore[0];
+
+    /**
+     * Limits the number of messages on <em>channel</em> waiting
+     * in the out queue to <em>share</em>, so that a busy channel
+     * does not take all the transmissions and leave the others
+     * waiting. A sender on a channel which has used up its share
+     * waits. This method must be called before open().
+     */
+    public void setChannelShare(int channel, int share) {
+	if (channel < 0 || channel > RegularMessage.MAX_CHANNEL) {
+	    throw new IllegalArgumentException("Invalid channel: " + channel);
+	}
+	if (share <= 0) {
+	    throw new IllegalArgumentException("Share must be positive: " + share);
+	}
+	if (channel >= shares.length) {
+	    Semaphore[] tmp = new Semaphore[channel + 1];
+	    System.arraycopy(shares, 0, tmp, 0, shares.length);
+	    shares = tmp;
+	}
+	shares[channel] = new Semaphore(share);
+    }
+
+    private Semaphore getShare(RegularMessage m) {
+	Semaphore share = null;
+	int channel = m.getChannel();
+	if (channel < shares.length) {
+	    share = shares[channel];
+	}
+	return share;
+    }
+
+    /**
+     * Gives back the place of <em>m</em> in the share of
+     * its channel, after it has left the out queue.
+     */
+    public void releaseShare(RegularMessage m) {
+	if (!m.getRecovered()) {
+	    Semaphore share = getShare(m);
+	    if (share != null) {
+		share.release();
 	    }
 	}
     }
 
+    public void send(evs4j.Message message) {
+	RegularMessage m = (RegularMessage) message;
+	Semaphore share = getShare(m);
+	if (share != null) {
+	    share.acquireUninterruptibly();
+	}
+	//parks while the queue is full, which
+	//lasts longer in COMMIT and RECOVERY states
+	sent.put(m);
+    }
+
+    public DeliveryFuture sendAsync(evs4j.Message message) {
+	RegularMessage m = (RegularMessage) message;
+	DeliveryFuture future = new DeliveryFuture();
+	m.addFuture(future);
+	send(m);
+	return future;
+    }
+
+    /**
+     * Fails the futures of the messages which were
+     * not delivered, or not safe, when the connection closed.
+     */
+    private void failFutures() {
+	IOException e = new IOException("Connection closed");
+	RegularMessage m;
+	while ((m = (RegularMessage) sent.poll()) != null) {
+	    releaseShare(m);
+	    m.failFutures(e);
+	}
+	Enumeration messages = configuration.getReceived().getMessages();
+	while (messages.hasMoreElements()) {
+	    m = (RegularMessage) messages.nextElement();
+	    m.failFutures(e);
+	}
+	state.failFutures(e);
+    }
+
     private Thread thread;
 
     private boolean terminate;
@@ -575,12 +1107,18 @@ public class SRPConnection implements Runnable,
 	terminate = true;
 	//thread will clean up
 	//upon stopping
+	if (transport != null) {
+	    transport.wakeup();
+	}
     }
 
     private boolean reset;
 
     public void reset() {
 	this.reset = true;
+	if (transport != null) {
+	    transport.wakeup();
+	}
     }
 
     public void open() throws IOException {
@@ -588,9 +1126,43 @@ public class SRPConnection implements Runnable,
 	if (DEBUG) log("tokenDroppedTimeout = " + tokenDroppedTimeout + "ms");
 	if (DEBUG) log("tokenLossTimeout = " + tokenLossTimeout + "ms");
 	if (DEBUG) log("consensusTimeout = " + consensusTimeout + "ms");
-	//create broadcast socket
-	socket = new SocketAdapter(this);
-	if (DEBUG) log("Created socket");
+	if (pooling) {
+	    pool = new BufferPool(packetSize);
+	}
+	if (retentionBudget > 0) {
+	    store = new RetentionStore(retentionBudget, retentionDirectory);
+	}
+	if (deliveryLanes > 1 && deliveryExecutor == null) {
+	    throw new IllegalStateException(PROP_DELIVERY_LANES + " requires a delivery executor");
+	}
+	if (channels != null) {
+	    //nobody listens to channel 0
+	    //unless the Listener was set
+	    if (!(listener instanceof DefaultListener)) {
+		channels.setListener(0, listener);
+	    }
+	    if (deliveryExecutor != null) {
+		//each channel gets its own stage
+		channels.stage(deliveryExecutor, deliveryQueueSize, deliveryLanes);
+	    }
+	    listener = channels;
+	} else if (deliveryLanes > 1) {
+	    //messages go through the lane of their key
+	    listener = new KeyedDeliveryStage(listener, deliveryExecutor, deliveryQueueSize, deliveryLanes);
+	} else if (deliveryExecutor != null) {
+	    //everything goes through the stage
+	    listener = new DeliveryStage(listener, deliveryExecutor, deliveryQueueSize);
+	}
+	//create transport
+	if (transportName.equals(TRANSPORT_LOOPBACK)) {
+	    transport = new LoopbackTransport(this);
+	} else {
+	    transport = new SocketAdapter(this);
+	}
+	if (DEBUG) log("Created transport");
+	if (dropSampleTimeout.getDuration() > 0) {
+	    dropSampleTimeout.reset();
+	}
 	//use stored configuration id or create new one
 	long configurationId = storedConfigurationId;
 	if (configurationId == 0) {
@@ -615,32 +1187,85 @@ public class SRPConnection implements Runnable,
 		discover();
 	    }
 	    if (terminate) {
-		//close socket
+		//close transport
 		try {
-		    socket.close();
+		    transport.close();
 		} catch (Exception e) {
 		    e.printStackTrace();
 		    //ignore
 		}
+		failFutures();
+		//give the packets back before the store goes
+		if (state instanceof SRPRecovery) {
+		    ((SRPRecovery) state).dropConfiguration(configuration);
+		}
+		configuration.getReceived().dispose();
+		//delete spill file
+		if (store != null) {
+		    try {
+			store.close();
+		    } catch (IOException e) {
+			e.printStackTrace();
+			//ignore
+		    }
+		}
 		if (DEBUG) log("Connection closed");
 		//exit main loop
 		break;
 	    }
-	    Message message = socket.receive();
-	    if (message != null) {
-		message.execute(this, state);
+	    //wait for messages, but no longer than
+	    //the earliest pending timeout
+	    long now = System.currentTimeMillis();
+	    long deadline = getDeadline();
+	    long timeout;
+	    if (deadline == Long.MAX_VALUE) {
+		//wait forever
+		timeout = 0;
+	    } else if (deadline > now) {
+		timeout = deadline - now;
 	    } else {
-		//no messages waiting to be processed
-		//check timeouts		
-		long now = System.currentTimeMillis();
-		tokenDroppedTimeout.execute(this, state, now);
-		tokenLossTimeout.execute(this, state, now);
-		joinTimeout.execute(this, state, now);
-		consensusTimeout.execute(this, state, now);
+		//do not wait
+		timeout = -1;
+	    }
+	    int count = transport.receive(timeout);
+	    for (int i = 0; i < count; i++) {
+		Message message = transport.next();
+		if (message != null) {
+		    message.execute(this, state);
+		}
+		if (reset || terminate) {
+		    //the rest of the batch belongs to
+		    //the old state, drop it as if lost
+		    break;
+		}
 	    }
+	    if (reset || terminate) {
+		continue;
+	    }
+	    //check timeouts once per batch
+	    now = System.currentTimeMillis();
+	    tokenDroppedTimeout.execute(this, state, now);
+	    tokenLossTimeout.execute(this, state, now);
+	    joinTimeout.execute(this, state, now);
+	    consensusTimeout.execute(this, state, now);
+	    dropSampleTimeout.execute(this, state, now);
 	}
     }
 
+    /**
+     * Returns the time at which the earliest pending
+     * timeout expires, or Long.MAX_VALUE if no timeout
+     * is pending.
+     */
+    private long getDeadline() {
+	long deadline = tokenDroppedTimeout.getDeadline();
+	deadline = Math.min(deadline, tokenLossTimeout.getDeadline());
+	deadline = Math.min(deadline, joinTimeout.getDeadline());
+	deadline = Math.min(deadline, consensusTimeout.getDeadline());
+	deadline = Math.min(deadline, dropSampleTimeout.getDeadline());
+	return deadline;
+    }
+
     public void log(String s) {
 	if (debug) {
 	    String tmp = "";
@@ -0,0 +1,54 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl;
+
+import evs4j.Alert;
+
+/**
+ * Used to tell the application that the operating system dropped
+ * incoming packets because the socket receive buffer was full.
+ * Unlike packets lost on the wire, these drops can be avoided by
+ * increasing the receive buffer size.
+ */
+public class SRPDropAlert implements Alert {
+
+    private long dropped;
+    private long total;
+
+    /**
+     * Returns the number of packets dropped since the last alert.
+     */
+    public long getDropped() { return dropped; }
+
+    /**
+     * Returns the number of packets dropped since the connection
+     * was opened.
+     */
+    public long getTotal() { return total; }
+
+    public SRPDropAlert(long dropped, 
+			long total) {
+	this.dropped = dropped;
+	this.total = total;
+    }
+
+    public String toString() {
+	return dropped + " packets dropped by the receive buffer (" + total + " in total)";
+    }
+
+}
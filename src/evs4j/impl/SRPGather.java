@@ -17,10 +17,8 @@
 
 package evs4j.impl;
 
-import java.util.Iterator;
 import java.net.InetAddress;
 import evs4j.Processor;
-import evs4j.impl.Queue;
 import evs4j.impl.CompileTimeMacro;
 import evs4j.impl.message.Buffer;
 import evs4j.impl.message.RegularTokenMessage;
@@ -42,6 +40,7 @@ public class SRPGather implements SRPState, CompileTimeMacro {
 	this.processor = processor;
 	this.candidates = configuration.getProcessorSet().copy();
 	this.failed = new ProcessorSet();
+	this.diff = new ProcessorSet();
 	int maxConfigurationNumber = SRPConfiguration.getConfigurationNumber(configurationId);
 	this.consensus = new Consensus(processor, maxConfigurationNumber);
     }
@@ -78,6 +77,12 @@ public class SRPGather implements SRPState, CompileTimeMacro {
 	failed.add(processor);
     }
 
+    /**
+     * Holds the candidates minus the failed processors,
+     * which is recomputed for every join message.
+     */
+    private ProcessorSet diff;
+
     /**
      * The Processor object for this processor.
      */
@@ -85,7 +90,7 @@ public class SRPGather implements SRPState, CompileTimeMacro {
 
     public void discover() {
 	int maxConfigurationNumber = SRPConfiguration.getConfigurationNumber(configurationId);
-	Buffer buffer = new Buffer(0);
+	Buffer buffer = conn.createBuffer();
 	JoinMessage message = new JoinMessage(buffer,
 					      processor,
 					      candidates,
@@ -98,7 +103,7 @@ public class SRPGather implements SRPState, CompileTimeMacro {
 	conn.resetConsensusTimeout();
     }
 
-    private Queue sent;
+    private SendQueue sent;
 
     public void regularTokenReceived(RegularTokenMessage token) {
 	RegularTokenMessage nextToken = null;
@@ -154,7 +159,7 @@ public class SRPGather implements SRPState, CompileTimeMacro {
 	if (messageCandidates.equals(candidates) &&
 	    messageFailed.equals(failed)) {
 	    consensus.add(sender, message.getMaxConfigurationNumber());
-	    ProcessorSet diff = candidates.minus(failed);
+	    ProcessorSet diff = candidates.minus(failed, this.diff);
 	    boolean all = consensus.check(diff);
 	    if (all && !diff.isEmpty() && processor.equals(diff.getCoordinator())) {
 		//generate id for next configuration
@@ -165,7 +170,7 @@ public class SRPGather implements SRPState, CompileTimeMacro {
 		CommitTokenMessage token;
 		long nextConfigurationId = SRPConfiguration.toConfigurationId(processor.getValue(), nextConfigurationNumber);
 		int tokenId = 1;
-		Buffer buffer = new Buffer(0);
+		Buffer buffer = conn.createBuffer();
 		token = new CommitTokenMessage(buffer,
 					       nextConfigurationId,
 					       tokenId,
@@ -190,7 +195,7 @@ public class SRPGather implements SRPState, CompileTimeMacro {
     }
 
     public void commitTokenReceived(CommitTokenMessage token) {
-	ProcessorSet diff = candidates.minus(failed);
+	ProcessorSet diff = candidates.minus(failed, this.diff);
 	ProcessorSet tokenProcessors = token.getProcessors();
 	//check that the token is starting a configuration
 	//that comes after the configuration we know
@@ -207,22 +212,24 @@ public class SRPGather implements SRPState, CompileTimeMacro {
 	conn.resetJoinTimeout();
     }
 
+    public void failFutures(Throwable cause) {
+	//the connection's configuration
+	//holds all the messages
+    }
+
     public void consensusTimeoutExpired() {
-	ProcessorSet diff = candidates.minus(failed);
+	ProcessorSet diff = candidates.minus(failed, this.diff);
 	if (!consensus.check(diff)) {
-	    Iterator iterator = diff.iterator();
-	    while (iterator.hasNext()) {
-		Processor tmp = (Processor) iterator.next();
+	    for (int i = 0; i < diff.getCount(); i++) {
+		Processor tmp = diff.get(i);
 		if (!consensus.get(tmp)) {
 		    failed.add(tmp);
 		}
 	    }
 	    discover();
 	} else {
-	    Iterator iterator = diff.iterator();
-	    while (iterator.hasNext()) {
-		Processor tmp = (Processor) iterator.next();
-		consensus.remove(tmp);
+	    for (int i = 0; i < diff.getCount(); i++) {
+		consensus.remove(diff.get(i));
 	    }
 	    consensus.add(processor, SRPConfiguration.getConfigurationNumber(configurationId));
 	    conn.resetTokenLossTimeout();
@@ -0,0 +1,44 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl;
+
+import evs4j.Alert;
+
+/**
+ * Used to tell the application that one of the rings of the
+ * redundant ring protocol has been marked faulty.
+ */
+public class SRPLinkAlert implements Alert {
+
+    private int ring;
+    private String nic;
+
+    public int getRing() { return ring; }
+    public String getNic() { return nic; }
+
+    public SRPLinkAlert(int ring, 
+			String nic) {
+	this.ring = ring;
+	this.nic = nic;
+    }
+
+    public String toString() {
+	return "Ring " + ring + " (" + nic + ") is faulty";
+    }
+
+}
@@ -18,7 +18,6 @@
 package evs4j.impl;
 
 import evs4j.Processor;
-import evs4j.impl.Queue;
 import evs4j.impl.CompileTimeMacro;
 import evs4j.impl.message.RegularTokenMessage;
 import evs4j.impl.message.CommitTokenMessage;
@@ -45,7 +44,7 @@ public class SRPOperational implements SRPState, CompileTimeMacro {
 
     private RegularTokenHandler handler;
 
-    private Queue sent;
+    private SendQueue sent;
 
     public void regularTokenReceived(RegularTokenMessage token) {
 	RegularTokenMessage nextToken = null;
@@ -110,6 +109,11 @@ public class SRPOperational implements SRPState, CompileTimeMacro {
 	//do nothing
     }
 
+    public void failFutures(Throwable cause) {
+	//the connection's configuration
+	//holds all the messages
+    }
+
     public String toString() {
 	return "OPERATIONAL";
     }
@@ -18,10 +18,11 @@
 package evs4j.impl;
 
 import java.util.Enumeration;
+import java.util.Vector;
 import evs4j.Listener;
+import evs4j.BatchListener;
 import evs4j.Processor;
 import evs4j.Configuration;
-import evs4j.impl.Queue;
 import evs4j.impl.CompileTimeMacro;
 import evs4j.impl.message.Message;
 import evs4j.impl.message.IllegalMessageException;
@@ -48,11 +49,11 @@ public class SRPRecovery implements SRPState, CompileTimeMacro {
 	long nextConfigurationId = token.getConfigurationId();
 	boolean transitional = false;
 	this.nextConfiguration = new SRPConfiguration(conn, nextProcessors, nextConfigurationId, transitional);
-	this.sent = new Queue();
 	//will switch back if we have a failure
 	conn.install(this.nextConfiguration);
 	this.nextHandler = nextConfiguration.getHandler();
 	int minLowMessageId = 0;
+	Vector wrappers = new Vector();
 	CommitInfo[] list = token.getInfo();
 	for (int i=0; i<list.length; i++) {
 	    CommitInfo tmp = list[i];
@@ -82,10 +83,17 @@ public class SRPRecovery implements SRPState, CompileTimeMacro {
 				     length);
 		    wrapper.setLength(length);
 		    wrapper.setRecovered(true);
-		    sent.add(wrapper);
+		    wrappers.add(wrapper);
 		}
 	    }
 	}
+	//nothing else is added, so the queue
+	//only needs room for the wrappers
+	int size = wrappers.size();
+	this.sent = new SendQueue(Math.max(size, 1));
+	for (int i=0; i<size; i++) {
+	    sent.offer(wrappers.get(i));
+	}
 	conn.resetTokenLossTimeout();
 	conn.resetTokenDroppedTimeout();
     }
@@ -124,7 +132,7 @@ public class SRPRecovery implements SRPState, CompileTimeMacro {
      */
     private int backlogCount;
 
-    private Queue sent;
+    private SendQueue sent;
 
     public void regularTokenReceived(RegularTokenMessage token) {
 	RegularTokenMessage nextToken = null;
@@ -175,15 +183,35 @@ public class SRPRecovery implements SRPState, CompileTimeMacro {
 		//the previous configuration (because the gaps
 		//spoil the agreed and safe order within the old
 		//membership)
+		Batch batch = null;
+		Listener target = listener;
+		if (listener instanceof BatchListener) {
+		    batch = new Batch((BatchListener) listener);
+		    target = batch;
+		}
+		Vector delivered = new Vector();
 		Enumeration messages = previousReceived.getMessages();
 		while (messages.hasMoreElements()) {
 		    RegularMessage m = (RegularMessage) messages.nextElement();
 		    //deliver only messages from transProcessors
 		    //because of causality
 		    if (transProcessors.contains(m.getSender())) {
-			listener.onMessage(m);
+			if (!(listener instanceof ChannelDispatcher) ||
+			    ((ChannelDispatcher) listener).isSubscribed(m.getChannel())) {
+			    m.deliver(target);
+			}
+			delivered.addElement(m);
 		    }
 		}
+		if (batch != null) {
+		    batch.flush();
+		}
+		for (int i = 0; i < delivered.size(); i++) {
+		    RegularMessage m = (RegularMessage) delivered.elementAt(i);
+		    //every processor in the transitional
+		    //configuration has the message
+		    m.completeSafe();
+		}
 		//deliver second configuration change message
 		ProcessorSet nextProcessors = nextConfiguration.getProcessorSet();
 		SRPConfiguration nextConfiguration = new SRPConfiguration(conn, nextProcessors, nextConfigurationId, false);
@@ -212,7 +240,7 @@ public class SRPRecovery implements SRPState, CompileTimeMacro {
 	    //into it (we use a copy because a Buffer must be
 	    //associated with only one Message object)
 	    Buffer buffer = message.getBuffer().copy();
-	    MessageReader reader = new MessageReader();
+	    MessageReader reader = new MessageReader(conn.getProcessorRegistry());
 	    try {
 		inner = (RegularMessage) reader.readMessage(buffer);
 	    } catch (IllegalMessageException e) {
@@ -221,6 +249,9 @@ public class SRPRecovery implements SRPState, CompileTimeMacro {
 	    if (inner.getConfigurationId() == previousConfiguration.getId()) {
 		previousConfiguration.receive(inner);
 	    }
+	    //drop the reader's reference, the
+	    //received list has its own
+	    buffer.release();
 	}
     }
 
@@ -247,7 +278,7 @@ public class SRPRecovery implements SRPState, CompileTimeMacro {
 	long nextConfigurationId = nextConfiguration.getId();
 	if (tokenConfigurationId == nextConfigurationId) {
 	    if (processors.getCoordinator().equals(processor)) {
-		Buffer buffer = new Buffer(0);
+		Buffer buffer = conn.createBuffer();
 		RegularTokenMessage regularToken = null;
 		regularToken = new RegularTokenMessage(buffer,
 						       commitToken.getConfigurationId(),
@@ -278,6 +309,29 @@ public class SRPRecovery implements SRPState, CompileTimeMacro {
 	//do nothing
     }
 
+    public void failFutures(Throwable cause) {
+	//the next configuration is already installed, but
+	//the messages of the previous one are still here
+	Enumeration messages = previousConfiguration.getReceived().getMessages();
+	while (messages.hasMoreElements()) {
+	    RegularMessage m = (RegularMessage) messages.nextElement();
+	    m.failFutures(cause);
+	}
+    }
+
+    /**
+     * Disposes of the messages of whichever of the two
+     * configurations is not <em>installed</em>, when
+     * the connection leaves this state.
+     */
+    public void dropConfiguration(SRPConfiguration installed) {
+	SRPConfiguration dropped = nextConfiguration;
+	if (installed == nextConfiguration) {
+	    dropped = previousConfiguration;
+	}
+	dropped.getReceived().dispose();
+    }
+
     public String toString() {
 	return "RECOVERY";
     }
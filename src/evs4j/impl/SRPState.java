@@ -42,4 +42,10 @@ public interface SRPState {
 
     public abstract void joinTimeoutExpired();
 
+    /**
+     * Fails the futures of the messages which only this
+     * state still holds, when the connection closes.
+     */
+    public abstract void failFutures(Throwable cause);
+
 }
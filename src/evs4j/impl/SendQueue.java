@@ -0,0 +1,188 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue of outgoing messages with many producers
+ * (the threads calling send) and a single consumer (the
+ * protocol thread holding the token). Producers claim a slot
+ * with a compare-and-set on the tail and then publish it through
+ * the slot's sequence number, so neither side takes a lock.
+ * A producer which finds the queue full parks, and the consumer
+ * unparks one waiting producer for every slot it frees.
+ */
+public class SendQueue {
+
+    /**
+     * The number of slots.
+     */
+    private int capacity;
+
+    public int getCapacity() {
+	return capacity;
+    }
+
+    private AtomicReferenceArray items;
+
+    /**
+     * For each slot, the tail position at which it can next
+     * be claimed, or that position plus one once the element
+     * stored there has been published.
+     */
+    private AtomicLongArray sequences;
+
+    /**
+     * The next position to be claimed by a producer.
+     */
+    private AtomicLong tail;
+
+    /**
+     * The next position to be read by the consumer.
+     * Only the consumer writes this.
+     */
+    private volatile long head;
+
+    /**
+     * Producers waiting for a free slot.
+     */
+    private ConcurrentLinkedQueue waiters;
+
+    public SendQueue(int capacity) {
+	if (capacity <= 0) {
+	    throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+	}
+	this.capacity = capacity;
+	this.items = new AtomicReferenceArray(capacity);
+	this.sequences = new AtomicLongArray(capacity);
+	for (int i=0; i<capacity; i++) {
+	    sequences.set(i, i);
+	}
+	this.tail = new AtomicLong();
+	this.waiters = new ConcurrentLinkedQueue();
+    }
+
+    /**
+     * Returns the number of elements in the queue. Elements
+     * being added concurrently may or may not be counted.
+     */
+    public int length() {
+	long length = tail.get() - head;
+	if (length < 0) {
+	    length = 0;
+	} else if (length > capacity) {
+	    length = capacity;
+	}
+	return (int) length;
+    }
+
+    /**
+     * Adds an object at the end of the queue if there is room,
+     * and returns false otherwise. This method never blocks.
+     */
+    public boolean offer(Object object) {
+	while (true) {
+	    long position = tail.get();
+	    int index = (int) (position % capacity);
+	    long diff = sequences.get(index) - position;
+	    if (diff == 0) {
+		//slot is free, try to claim it
+		if (tail.compareAndSet(position, position + 1)) {
+		    items.set(index, object);
+		    //publish
+		    sequences.set(index, position + 1);
+		    return true;
+		}
+	    } else if (diff < 0) {
+		//consumer has not freed this slot yet
+		return false;
+	    }
+	    //else another producer got there first
+	}
+    }
+
+    /**
+     * Adds an object at the end of the queue, parking the
+     * calling thread for as long as the queue is full.
+     */
+    public void put(Object object) {
+	if (offer(object)) {
+	    return;
+	}
+	Thread thread = Thread.currentThread();
+	while (true) {
+	    waiters.add(thread);
+	    //check again now that the consumer can see us,
+	    //or we could miss the wakeup for the last free slot
+	    if (offer(object)) {
+		waiters.remove(thread);
+		return;
+	    }
+	    LockSupport.park(this);
+	    waiters.remove(thread);
+	    if (offer(object)) {
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Removes the element at the beginning of the queue, or
+     * returns null if there is none. Only one thread may call
+     * this method.
+     */
+    public Object poll() {
+	long position = head;
+	int index = (int) (position % capacity);
+	if (sequences.get(index) != position + 1) {
+	    //empty, or the producer has not published yet
+	    return null;
+	}
+	Object object = items.get(index);
+	items.set(index, null);
+	//free the slot for the next lap
+	sequences.set(index, position + capacity);
+	head = position + 1;
+	Thread waiter = (Thread) waiters.poll();
+	if (waiter != null) {
+	    LockSupport.unpark(waiter);
+	}
+	return object;
+    }
+
+    /**
+     * Returns the element at the beginning of the queue
+     * without removing it, or null if there is none. Only
+     * the consumer thread may call this method.
+     */
+    public Object peek() {
+	long position = head;
+	int index = (int) (position % capacity);
+	Object object = null;
+	if (sequences.get(index) == position + 1) {
+	    object = items.get(index);
+	}
+	return object;
+    }
+
+}
@@ -0,0 +1,99 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package evs4j.impl;
+
+public class SendQueueTest {
+
+    public static void main(String[] args) {
+	SendQueueTest test = new SendQueueTest();
+	test.testSendQueue();
+    }
+
+    public void testSendQueue() {
+	final SendQueue queue = new SendQueue(3);
+	//wrap around a few times
+	for (int i = 0; i < 10; i++) {
+	    if (!queue.offer(Integer.valueOf(i))) {
+		throw new RuntimeException("Test failed");
+	    }
+	    if (((Integer) queue.peek()).intValue() != i ||
+		((Integer) queue.poll()).intValue() != i ||
+		queue.poll() != null) {
+		throw new RuntimeException("Test failed");
+	    }
+	}
+	for (int i = 0; i < 3; i++) {
+	    queue.offer(Integer.valueOf(i));
+	}
+	if (queue.offer(Integer.valueOf(3)) || queue.length() != 3) {
+	    throw new RuntimeException("Test failed");
+	}
+	//producers block until the consumer makes room
+	final int producers = 4;
+	final int count = 1000;
+	Thread[] threads = new Thread[producers];
+	for (int p = 0; p < producers; p++) {
+	    final int first = 3 + p * count;
+	    threads[p] = new Thread() {
+		    public void run() {
+			for (int i = 0; i < count; i++) {
+			    queue.put(Integer.valueOf(first + i));
+			}
+		    }
+		};
+	    threads[p].start();
+	}
+	int total = 3 + producers * count;
+	boolean[] seen = new boolean[total];
+	int[] last = new int[producers];
+	for (int p = 0; p < producers; p++) {
+	    last[p] = -1;
+	}
+	for (int n = 0; n < total; ) {
+	    Integer value = (Integer) queue.poll();
+	    if (value == null) {
+		Thread.yield();
+		continue;
+	    }
+	    int v = value.intValue();
+	    if (seen[v]) {
+		throw new RuntimeException("Test failed");
+	    }
+	    seen[v] = true;
+	    if (v >= 3) {
+		//each producer's messages stay in order
+		int p = (v - 3) / count;
+		if (v <= last[p]) {
+		    throw new RuntimeException("Test failed");
+		}
+		last[p] = v;
+	    }
+	    n++;
+	}
+	for (int p = 0; p < producers; p++) {
+	    try {
+		threads[p].join();
+	    } catch (InterruptedException e) {
+		throw new RuntimeException("Test failed", e);
+	    }
+	}
+	if (queue.length() != 0) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+}
@@ -17,53 +17,335 @@
 
 package evs4j.impl;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.net.MulticastSocket;
-import java.net.DatagramPacket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import evs4j.Processor;
 import evs4j.impl.CompileTimeMacro;
 import evs4j.impl.message.Message;
 import evs4j.impl.message.IllegalMessageException;
 import evs4j.impl.message.JoinMessage;
 import evs4j.impl.message.RegularMessage;
-import evs4j.impl.message.CommitTokenMessage;
-import evs4j.impl.message.RegularTokenMessage;
+import evs4j.impl.message.TokenMessage;
 import evs4j.impl.message.MessageWriter;
 import evs4j.impl.message.MessageReader;
+import evs4j.impl.message.RegularTokenMessage;
 import evs4j.impl.message.Buffer;
 
-public class SocketAdapter implements CompileTimeMacro {
+/**
+ * The UDP multicast Transport. It sends and receives the protocol's
+ * packets on a non-blocking
+ * DatagramChannel which has joined the multicast group. The
+ * receiving thread waits on a Selector, so it wakes up either
+ * when a packet arrives or when the caller's deadline (usually 
+ * the earliest pending Timeout) is reached, and never polls.
+ * <p>
+ * Every packet is sent from a second, unicast channel bound to an
+ * ephemeral port on the nic, so the source address of a processor's
+ * join messages is an address at which that processor (and only that 
+ * processor, even if several share a host) can be reached. Tokens are
+ * sent point-to-point to the address learned in this way, so that the 
+ * other processors do not have to receive and decode them.
+ * <p>
+ * When more than one nic is configured this class implements the
+ * redundant ring protocol, with one ring (a pair of channels) per nic.
+ * In active mode every packet is sent on all the rings, and the copies
+ * of a token are discarded by comparing them with the last token
+ * received (copies of regular messages are discarded by the received
+ * list, and join messages can be processed more than once). In passive
+ * mode the packets are sent on one ring at a time, taking turns. Join
+ * messages are always sent on all the rings. A ring which stops
+ * delivering tokens is marked faulty, without a membership change.
+ * <p>
+ * On networks without multicast a list of peers is used instead of 
+ * a group: the unicast channel is bound to the configured port, and a
+ * broadcast is encoded once and sent to this processor, the peers, and
+ * every processor a join message has come from.
+ */
+public class SocketAdapter implements Transport, CompileTimeMacro {
+
+    /**
+     * The number of tokens in a row that a ring can miss (in active
+     * mode) or lag behind another ring by (in passive mode) before it
+     * is marked faulty.
+     */
+    public static final int FAULTY_THRESHOLD = 10;
+
+    /**
+     * The maximum number of rings.
+     */
+    public static final int MAX_RINGS = 32;
+
+    /**
+     * One ring of the redundant ring protocol.
+     */
+    private static class Link {
+
+	public int index;
+
+	public NetworkInterface nic;
+
+	/**
+	 * Receives the multicast packets, or is null
+	 * if the ring does not use multicast.
+	 */
+	public DatagramChannel channel;
+
+	public MembershipKey membership;
+
+	/**
+	 * Sends all the packets, and receives the
+	 * packets sent to this processor only.
+	 */
+	public DatagramChannel unicastChannel;
+
+	/**
+	 * Used by the sending thread to wait for room
+	 * in the socket's send buffer.
+	 */
+	public Selector writeSelector;
+
+	/**
+	 * The address of the multicast group, or null
+	 * if the ring does not use multicast.
+	 */
+	public SocketAddress group;
+
+	/**
+	 * The addresses a broadcast is sent to when
+	 * the ring does not use multicast.
+	 */
+	public SocketAddress[] targets;
+
+	/**
+	 * Maps Processor objects to the SocketAddress objects
+	 * their packets come from on this ring, as learned from 
+	 * their join messages.
+	 */
+	public Map addresses;
+
+	public boolean faulty;
+
+	/**
+	 * The number of tokens in a row this ring
+	 * has missed (active mode).
+	 */
+	public int missed;
+
+	/**
+	 * The number of tokens received on this
+	 * ring, including copies (passive mode).
+	 */
+	public int received;
+
+    }
     
     public SocketAdapter(SRPConnection conn) {
 	this.conn = conn;
+	this.peers = conn.getPeers();
 	InetAddress ip = conn.getIP();
-	NetworkInterface nic = conn.getNic();
+	NetworkInterface[] nics = conn.getNics();
 	int port = conn.getPort();
-	int socketTimeout = conn.getSocketTimeout();
+	active = conn.getRRP().equals(SRPConnection.RRP_ACTIVE);
 	try {
-	    socket = new MulticastSocket(port);
-	    socket.setNetworkInterface(nic);
-	    socket.setSoTimeout(socketTimeout);
-	    //hint to OS to _enable_ loop-back mode
-	    socket.setLoopbackMode(false);
-	    socket.joinGroup(ip);
+	    selector = Selector.open();
+	    links = new Link[nics.length];
+	    for (int i = 0; i < nics.length; i++) {
+		//each ring has its own port, so that the
+		//channels of one ring do not receive the 
+		//packets of the others
+		links[i] = open(i, ip, nics[i], port + i);
+	    }
 	} catch (IOException e) {
 	    e.printStackTrace();
 	    throw new RuntimeException("Failed to create receive socket");
 	}
-	receivePacket = new DatagramPacket(new byte[0], 0);
-	reader = new MessageReader();
-	sendPacket = new DatagramPacket(new byte[0], 0, ip, port);
+	working = links.length;
+	lastToken = new byte[conn.getPacketSize()];
+	int batchSize = conn.getReceiveBatchSize();
+	ring = new Buffer[batchSize];
+	packets = new ByteBuffer[batchSize];
+	for (int i = 0; i < batchSize; i++) {
+	    fill(i);
+	}
+	sources = new SocketAddress[batchSize];
+	origins = new Link[batchSize];
+	reader = new MessageReader(conn.getProcessorRegistry());
 	writer = new MessageWriter();
+	long interval = conn.getDropSampleInterval();
+	if (interval > 0) {
+	    startSampler(interval);
+	}
+    }
+
+    /**
+     * Opens the channels of a ring. If <em>ip</em> is null
+     * the ring does not use multicast, and the unicast channel
+     * is bound to <em>port</em>.
+     */
+    private Link open(int index, 
+		      InetAddress ip, 
+		      NetworkInterface nic, 
+		      int port) throws IOException {
+	InetAddress address = (ip != null) ? ip : peers[0].getAddress();
+	StandardProtocolFamily family;
+	if (address instanceof Inet4Address) {
+	    family = StandardProtocolFamily.INET;
+	} else {
+	    family = StandardProtocolFamily.INET6;
+	}
+	Link link = new Link();
+	link.index = index;
+	link.nic = nic;
+	link.addresses = new HashMap();
+	DatagramChannel unicastChannel = DatagramChannel.open(family);
+	setBufferSizes(unicastChannel);
+	if (ip != null) {
+	    DatagramChannel channel = DatagramChannel.open(family);
+	    channel.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+	    setBufferSizes(channel);
+	    channel.bind(new InetSocketAddress(port));
+	    channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nic);
+	    //we must receive our own packets
+	    channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, Boolean.TRUE);
+	    channel.configureBlocking(false);
+	    link.channel = channel;
+	    link.membership = channel.join(ip, nic);
+	    channel.register(selector, SelectionKey.OP_READ);
+	    link.group = new InetSocketAddress(ip, port);
+	    unicastChannel.bind(new InetSocketAddress(getAddress(nic, family), 0));
+	    unicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nic);
+	    //we must receive our own packets
+	    unicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, Boolean.TRUE);
+	} else {
+	    //the peers send to this port
+	    unicastChannel.bind(new InetSocketAddress(getAddress(nic, family), port));
+	}
+	unicastChannel.configureBlocking(false);
+	link.unicastChannel = unicastChannel;
+	unicastChannel.register(selector, SelectionKey.OP_READ);
+	link.writeSelector = Selector.open();
+	unicastChannel.register(link.writeSelector, SelectionKey.OP_WRITE);
+	if (ip == null) {
+	    updateTargets(link);
+	}
+	return link;
+    }
+
+    /**
+     * Sets the sizes of the socket buffers of <em>channel</em>.
+     * The operating system may use smaller sizes than requested
+     * (on Linux, see net.core.rmem_max and net.core.wmem_max.)
+     */
+    private void setBufferSizes(DatagramChannel channel) throws IOException {
+	channel.setOption(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(conn.getReceiveBufferSize()));
+	int sendBufferSize = conn.getSendBufferSize();
+	if (sendBufferSize > 0) {
+	    channel.setOption(StandardSocketOptions.SO_SNDBUF, Integer.valueOf(sendBufferSize));
+	}
+	if (DEBUG) {
+	    conn.log("Socket buffer sizes: " + 
+		     channel.getOption(StandardSocketOptions.SO_RCVBUF) + " (receive), " +
+		     channel.getOption(StandardSocketOptions.SO_SNDBUF) + " (send)");
+	}
+    }
+
+    /**
+     * Recomputes the addresses a broadcast is sent to on a
+     * ring which does not use multicast: this processor, the 
+     * peers, and the processors we have seen join messages from.
+     */
+    private void updateTargets(Link link) throws IOException {
+	Set targets = new LinkedHashSet();
+	targets.add(link.unicastChannel.getLocalAddress());
+	for (int i = 0; i < peers.length; i++) {
+	    targets.add(peers[i]);
+	}
+	targets.addAll(link.addresses.values());
+	link.targets = (SocketAddress[]) targets.toArray(new SocketAddress[targets.size()]);
+	if (DEBUG) conn.log("Broadcast targets: " + targets);
+    }
+
+    /**
+     * Returns an address of <em>nic</em> in the given
+     * protocol family.
+     */
+    private static InetAddress getAddress(NetworkInterface nic, 
+					  StandardProtocolFamily family) 
+	throws IOException {
+	Enumeration e = nic.getInetAddresses();
+	while (e.hasMoreElements()) {
+	    InetAddress address = (InetAddress) e.nextElement();
+	    if ((address instanceof Inet4Address) == (family == StandardProtocolFamily.INET)) {
+		return address;
+	    }
+	}
+	throw new IOException("No " + family + " address on " + nic.getName());
     }
     
     private SRPConnection conn;
-    
-    private MulticastSocket socket;
-    
-    private DatagramPacket sendPacket;
+
+    /**
+     * The addresses of the peers, or null if
+     * multicast is used.
+     */
+    private InetSocketAddress[] peers;
+
+    /**
+     * The rings, one per nic.
+     */
+    private Link[] links;
+
+    /**
+     * The number of rings which are not faulty.
+     */
+    private int working;
+
+    /**
+     * True iff every packet is sent on all the rings.
+     */
+    private boolean active;
+
+    /**
+     * The ring to try first for the next regular
+     * message (passive mode).
+     */
+    private int messageTurn;
+
+    /**
+     * The ring to try first for the next token
+     * (passive mode). Tokens take turns separately 
+     * from regular messages, so that they are spread 
+     * over all the rings.
+     */
+    private int tokenTurn;
+
+    /**
+     * Used by the receiving thread to wait for
+     * incoming packets.
+     */
+    private Selector selector;
 
     private MessageWriter writer;
 
@@ -75,41 +357,308 @@ public class SocketAdapter implements CompileTimeMacro {
 		conn.log("Broadcasting message: " + ((RegularMessage) message).getId());
 	    }
 	}
-	try {
-	    Buffer buffer = message.getBuffer();
+	ByteBuffer packet = null;
+	if (message instanceof RegularMessage) {
+	    //a retransmission from the RetentionStore
+	    //is sent as it is
+	    packet = ((RegularMessage) message).getStoredPacket();
+	}
+	if (packet == null) {
 	    writer.writeMessage(message);
-	    sendPacket.setData(buffer.getData());
-	    sendPacket.setLength(buffer.getLength());
-	    socket.send(sendPacket);
+	    packet = wrap(message.getBuffer());
+	}
+	if (active || message instanceof JoinMessage) {
+	    for (int i = 0; i < links.length; i++) {
+		Link link = links[i];
+		if (!link.faulty) {
+		    broadcast(packet, link);
+		}
+	    }
+	} else {
+	    Link link = take(messageTurn);
+	    messageTurn = link.index + 1;
+	    broadcast(packet, link);
+	}
+    }
+
+    /**
+     * Sends <em>message</em> directly to <em>destination</em>
+     * if we have seen a join message from it, and broadcasts it
+     * otherwise.
+     */
+    public void send(Message message, Processor destination) {
+	writer.writeMessage(message);
+	ByteBuffer packet = wrap(message.getBuffer());
+	if (active) {
+	    for (int i = 0; i < links.length; i++) {
+		Link link = links[i];
+		if (!link.faulty) {
+		    send(packet, link, destination);
+		}
+	    }
+	} else {
+	    Link link = take(tokenTurn);
+	    tokenTurn = link.index + 1;
+	    send(packet, link, destination);
+	}
+    }
+
+    /**
+     * Returns a ByteBuffer view of the packet in the
+     * Buffer, which is sent as many times as needed.
+     */
+    private static ByteBuffer wrap(Buffer buffer) {
+	return ByteBuffer.wrap(buffer.getData(), 0, buffer.getLength());
+    }
+
+    /**
+     * Sends the packet on the given ring directly to 
+     * <em>destination</em>, if we have seen a join message
+     * from it, and broadcasts it otherwise.
+     */
+    private void send(ByteBuffer packet, Link link, Processor destination) {
+	SocketAddress address = (SocketAddress) link.addresses.get(destination);
+	if (address != null) {
+	    send(packet, link, address);
+	} else {
+	    if (DEBUG) conn.log("No address for " + destination + ", broadcasting");
+	    broadcast(packet, link);
+	}
+    }
+
+    /**
+     * Sends the packet to all the processors on the given ring,
+     * by multicast or else with one unicast packet per target.
+     */
+    private void broadcast(ByteBuffer packet, Link link) {
+	if (link.group != null) {
+	    send(packet, link, link.group);
+	} else {
+	    SocketAddress[] targets = link.targets;
+	    for (int i = 0; i < targets.length; i++) {
+		send(packet, link, targets[i]);
+	    }
+	}
+    }
+
+    /**
+     * Returns the first ring which is not faulty, starting
+     * from ring number <em>turn</em>.
+     */
+    private Link take(int turn) {
+	Link link;
+	int i = turn;
+	do {
+	    link = links[i % links.length];
+	    i++;
+	} while (link.faulty);
+	return link;
+    }
+
+    private void send(ByteBuffer packet, Link link, SocketAddress address) {
+	try {
+	    packet.rewind();
+	    while (link.unicastChannel.send(packet, address) == 0) {
+		//the send buffer is full, which is
+		//the only time a blocking socket would block
+		link.writeSelector.select();
+		link.writeSelector.selectedKeys().clear();
+	    }
 	} catch (IOException e) {
-	    e.printStackTrace();
-	    throw new RuntimeException("Failed to multicast");
+	    if (working > 1) {
+		//use the other rings
+		setFaulty(link);
+	    } else {
+		e.printStackTrace();
+		throw new RuntimeException("Failed to send to " + address);
+	    }
 	}
     }
 
-    private DatagramPacket receivePacket;
-    
+    /**
+     * Stops using the given ring, unless it is the last
+     * one, and tells the Listener.
+     */
+    private void setFaulty(Link link) {
+	if (link.faulty || working == 1) {
+	    return;
+	}
+	link.faulty = true;
+	working--;
+	SRPLinkAlert alert = new SRPLinkAlert(link.index, link.nic.getName());
+	if (DEBUG) conn.log(alert.toString());
+	conn.getListener().onAlert(alert);
+    }
+
+    /**
+     * The last token received, used to discard its copies
+     * from the other rings.
+     */
+    private byte[] lastToken;
+
+    private int lastTokenLength;
+
+    /**
+     * The rings the last token has arrived on, one
+     * bit per ring.
+     */
+    private int tokenMask;
+
+    /**
+     * Returns true iff <em>buffer</em> contains a new token,
+     * rather than a copy of the last one which arrived on
+     * another ring, and checks the rings for faults. The same 
+     * token arriving again on the same ring is a new token (it 
+     * was retransmitted, or is on its next rotation.)
+     */
+    private boolean isNewToken(Buffer buffer, Link link) {
+	byte[] data = buffer.getData();
+	int length = buffer.getLength();
+	int bit = 1 << link.index;
+	if (!active) {
+	    //every ring should deliver about the same number 
+	    //of tokens, counting copies because retransmissions 
+	    //also take turns
+	    link.received++;
+	    for (int i = 0; i < links.length; i++) {
+		Link k = links[i];
+		if (!k.faulty && link.received - k.received >= FAULTY_THRESHOLD) {
+		    setFaulty(k);
+		}
+	    }
+	}
+	if ((tokenMask & bit) == 0 &&
+	    Arrays.equals(data, 0, length, lastToken, 0, lastTokenLength)) {
+	    tokenMask |= bit;
+	    return false;
+	}
+	if (active && lastTokenLength > 0) {
+	    //every ring should have delivered the last token
+	    for (int i = 0; i < links.length; i++) {
+		Link k = links[i];
+		if ((tokenMask & (1 << i)) != 0) {
+		    k.missed = 0;
+		} else if (!k.faulty && ++k.missed >= FAULTY_THRESHOLD) {
+		    setFaulty(k);
+		}
+	    }
+	}
+	System.arraycopy(data, 0, lastToken, 0, length);
+	lastTokenLength = length;
+	tokenMask = bit;
+	return true;
+    }
+
     private MessageReader reader;
-    
-    public Message receive() {
-	Message message = null;
+
+    /**
+     * The receive ring. The packets received by the last call
+     * to receive() are in the first <em>count</em> slots. The
+     * slots are reused by the next call to receive(), unless the
+     * message decoded from a slot retained its Buffer.
+     */
+    private Buffer[] ring;
+
+    /**
+     * The ByteBuffer views of the Buffer objects in the ring,
+     * which the channels write into.
+     */
+    private ByteBuffer[] packets;
+
+    /**
+     * Puts a new Buffer in the given slot of the ring.
+     */
+    private void fill(int slot) {
+	Buffer buffer = conn.createBuffer();
+	ring[slot] = buffer;
+	packets[slot] = ByteBuffer.wrap(buffer.getData());
+    }
+
+    /**
+     * The addresses the packets in the batch came from.
+     */
+    private SocketAddress[] sources;
+
+    /**
+     * The rings the packets in the batch arrived on.
+     */
+    private Link[] origins;
+
+    /**
+     * The number of packets in the batch.
+     */
+    private int count;
+
+    /**
+     * The index of the next packet to be decoded.
+     */
+    private int position;
+
+    public int receive(long timeout) {
+	count = 0;
+	position = 0;
 	try {
-	    Buffer buffer = new Buffer(0);
-	    //read reusable packet
-	    byte[] data = buffer.getData();
-	    receivePacket.setData(data);
-	    receivePacket.setLength(data.length);
-	    socket.receive(receivePacket);
-	    if (DEBUG) {
-		conn.log("received packet");
+	    drain();
+	    if (count == 0 && timeout >= 0) {
+		//nothing queued, wait for a packet, the
+		//deadline, or a call to wakeup()
+		selector.select(timeout);
+		selector.selectedKeys().clear();
+		drain();
 	    }
-	    //parse message
-	    buffer.setLength(receivePacket.getLength());
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    throw new RuntimeException("Receiver failed");
+	}
+	if (DEBUG) conn.log("received " + count + " packets");
+	return count;
+    }
+
+    /**
+     * Reads queued packets into the batch until there are no
+     * more or the batch is full.
+     */
+    private void drain() throws IOException {
+	while (count < ring.length) {
+	    if (ring[count].isShared()) {
+		//a message decoded from the slot is 
+		//being kept, leave the buffer to it
+		ring[count].release();
+		fill(count);
+	    }
+	    ByteBuffer packet = packets[count];
+	    packet.clear();
+	    if (!receive(packet, count)) {
+		break;
+	    }
+	    ring[count].setLength(packet.position());
+	    count++;
+	}
+    }
+
+    public Message next() {
+	Buffer buffer = ring[position];
+	SocketAddress address = sources[position];
+	Link link = origins[position];
+	sources[position] = null;
+	position++;
+	Message message = null;
+	try {
 	    message = reader.readMessage(buffer);
-	} catch (InterruptedIOException e) {
-	    //socket timeout expired
-	    if (DEBUG) {
-		conn.log("Socket timeout expired");
+	    if (message instanceof JoinMessage) {
+		Processor sender = ((JoinMessage) message).getSender();
+		Object previous = link.addresses.put(sender, address);
+		if (link.group == null && !address.equals(previous)) {
+		    updateTargets(link);
+		}
+	    } else if (message instanceof TokenMessage && links.length > 1) {
+		if (!isNewToken(buffer, link)) {
+		    //already received on another ring
+		    if (message instanceof RegularTokenMessage) {
+			reader.recycle((RegularTokenMessage) message);
+		    }
+		    message = null;
+		}
 	    }
 	} catch (IllegalMessageException e) {
 	    //skip this message
@@ -118,17 +667,236 @@ public class SocketAdapter implements CompileTimeMacro {
 		e.printStackTrace();
 		conn.log("Illegal message - skipping");
 	    }
-	} catch (Exception e) {
+	} catch (IOException e) {
 	    e.printStackTrace();
 	    throw new RuntimeException("Receiver failed");
 	}
 	return message;
     }
 
-    public void close() throws IOException {
-	socket.close();
+    /**
+     * Reads a queued packet, if any, into <em>packet</em>, and
+     * records where it came from in the given slot of the batch.
+     * Returns false if no packet was queued. Multicast packets are
+     * read first: a token should not be processed before the 
+     * messages that were broadcast ahead of it.
+     */
+    private boolean receive(ByteBuffer packet, int slot) throws IOException {
+	for (int i = 0; i < links.length; i++) {
+	    DatagramChannel channel = links[i].channel;
+	    SocketAddress address = (channel != null) ? channel.receive(packet) : null;
+	    if (address != null) {
+		sources[slot] = address;
+		origins[slot] = links[i];
+		return true;
+	    }
+	}
+	for (int i = 0; i < links.length; i++) {
+	    SocketAddress address = links[i].unicastChannel.receive(packet);
+	    if (address != null) {
+		sources[slot] = address;
+		origins[slot] = links[i];
+		return true;
+	    }
+	}
+	return false;
     }
 
-}
+    /**
+     * Lets the reader decode a later token into <em>token</em>.
+     */
+    public void recycle(RegularTokenMessage token) {
+	reader.recycle(token);
+    }
+
+    /**
+     * The files listing the udp sockets on Linux.
+     */
+    private static final String[] PROC_NET_UDP = {"/proc/net/udp", "/proc/net/udp6"};
+
+    /**
+     * The number of drops counted by the sampler,
+     * or -1 if they cannot be counted.
+     */
+    private volatile long drops = -1;
 
+    /**
+     * The inode numbers of our sockets, as
+     * they appear in /proc/net/udp.
+     */
+    private Set inodes;
 
+    /**
+     * The thread which reads the drops, so that the
+     * protocol thread never reads /proc, or null.
+     */
+    private Thread sampler;
+
+    /**
+     * Finds our sockets in /proc/net/udp and starts a thread
+     * which counts their drops every <em>interval</em> milliseconds.
+     * Does nothing if the files cannot be read.
+     */
+    private void startSampler(final long interval) {
+	inodes = getSocketInodes();
+	if (inodes == null) {
+	    return;
+	}
+	drops = countDrops();
+	if (drops < 0) {
+	    return;
+	}
+	sampler = new Thread("evs4j drop sampler") {
+		public void run() {
+		    try {
+			while (true) {
+			    Thread.sleep(interval);
+			    drops = countDrops();
+			}
+		    } catch (InterruptedException e) {
+			//closed
+		    }
+		}
+	    };
+	sampler.setDaemon(true);
+	sampler.start();
+    }
+
+    /**
+     * Returns the number of drops read by the sampler, without
+     * reading anything, or -1 if the drops are not sampled.
+     */
+    public long getDrops() {
+	return drops;
+    }
+
+    /**
+     * Adds up the drops column of /proc/net/udp and /proc/net/udp6
+     * for our sockets. Returns -1 if the files cannot be read.
+     */
+    private long countDrops() {
+	long drops = 0;
+	for (int i = 0; i < PROC_NET_UDP.length; i++) {
+	    BufferedReader in = null;
+	    try {
+		in = new BufferedReader(new FileReader(PROC_NET_UDP[i]));
+		//skip header
+		String line = in.readLine();
+		while ((line = in.readLine()) != null) {
+		    //sl local_address rem_address st tx_queue:rx_queue tr:tm->when 
+		    //retrnsmt uid timeout inode ref pointer drops
+		    String[] fields = line.trim().split("\\s+");
+		    if (fields.length >= 13 && inodes.contains(fields[9])) {
+			drops += Long.parseLong(fields[12]);
+		    }
+		}
+	    } catch (IOException e) {
+		if (i == 0) {
+		    //not Linux
+		    return -1;
+		}
+		//no ipv6
+	    } finally {
+		if (in != null) {
+		    try {
+			in.close();
+		    } catch (IOException e) {
+			//ignore
+		    }
+		}
+	    }
+	}
+	return drops;
+    }
+
+    /**
+     * Returns the inode numbers of the sockets of this process
+     * which are bound to the ports of our channels, or null if
+     * they cannot be read. This lists every file descriptor of
+     * the process, so it is only done once, after opening the
+     * channels. Another connection in this process which uses
+     * the same multicast port is counted too.
+     */
+    private Set getSocketInodes() {
+	File[] fds = new File("/proc/self/fd").listFiles();
+	if (fds == null) {
+	    return null;
+	}
+	Set own = new HashSet();
+	for (int i = 0; i < fds.length; i++) {
+	    try {
+		//the link looks like socket:[12345]
+		String target = Files.readSymbolicLink(fds[i].toPath()).toString();
+		if (target.startsWith("socket:[")) {
+		    own.add(target.substring(8, target.length() - 1));
+		}
+	    } catch (IOException e) {
+		//closed in the meantime
+	    }
+	}
+	Set ports = new HashSet();
+	for (int i = 0; i < links.length; i++) {
+	    Link link = links[i];
+	    if (link.channel != null) {
+		ports.add(Integer.valueOf(link.channel.socket().getLocalPort()));
+	    }
+	    ports.add(Integer.valueOf(link.unicastChannel.socket().getLocalPort()));
+	}
+	Set inodes = new HashSet();
+	for (int i = 0; i < PROC_NET_UDP.length; i++) {
+	    BufferedReader in = null;
+	    try {
+		in = new BufferedReader(new FileReader(PROC_NET_UDP[i]));
+		//skip header
+		String line = in.readLine();
+		while ((line = in.readLine()) != null) {
+		    String[] fields = line.trim().split("\\s+");
+		    if (fields.length < 13) {
+			continue;
+		    }
+		    String local = fields[1];
+		    Integer port = Integer.valueOf(Integer.parseInt(local.substring(local.indexOf(':') + 1), 16));
+		    if (ports.contains(port) && own.contains(fields[9])) {
+			inodes.add(fields[9]);
+		    }
+		}
+	    } catch (IOException e) {
+		if (i == 0) {
+		    //not Linux
+		    return null;
+		}
+		//no ipv6
+	    } finally {
+		if (in != null) {
+		    try {
+			in.close();
+		    } catch (IOException e) {
+			//ignore
+		    }
+		}
+	    }
+	}
+	return inodes;
+    }
+
+    public void wakeup() {
+	selector.wakeup();
+    }
+
+    public void close() throws IOException {
+	if (sampler != null) {
+	    sampler.interrupt();
+	}
+	selector.close();
+	for (int i = 0; i < links.length; i++) {
+	    Link link = links[i];
+	    if (link.channel != null) {
+		link.membership.drop();
+		link.channel.close();
+	    }
+	    link.writeSelector.close();
+	    link.unicastChannel.close();
+	}
+    }
+
+}
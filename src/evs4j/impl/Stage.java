@@ -0,0 +1,34 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package evs4j.impl;
+
+/**
+ * A Listener which hands the events to other threads through
+ * bounded queues, so that it can fall behind the connection.
+ * The ReceivedList holds the messages back while the queues
+ * are filling up, and the ring slows down with it.
+ */
+public interface Stage {
+
+    /**
+     * Returns the number of events which can still be handed
+     * to this stage before the messages must be held back, or
+     * a negative number. This is called by the connection's thread.
+     */
+    public int getRoom();
+
+}
@@ -0,0 +1,92 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl;
+
+import java.io.IOException;
+import evs4j.Processor;
+import evs4j.impl.message.Message;
+import evs4j.impl.message.RegularTokenMessage;
+
+/**
+ * The interface between SRPConnection and the network. A Transport
+ * encodes and sends the protocol's messages, and receives and decodes
+ * the messages sent by the other processors (and by this processor,
+ * since the protocol expects to see its own broadcasts.)
+ * <p>
+ * SocketAdapter is the implementation which uses UDP multicast.
+ * LoopbackTransport connects processors running in the same JVM.
+ */
+public interface Transport {
+
+    /**
+     * Sends <em>message</em> to all the processors.
+     */
+    public void send(Message message);
+
+    /**
+     * Sends <em>message</em> to the processor <em>destination</em>.
+     * A Transport which does not know how to reach the processor
+     * may broadcast the message instead, since every processor
+     * ignores tokens which are not addressed to it.
+     */
+    public void send(Message message, Processor destination);
+
+    /**
+     * Receives a batch of packets: all the packets which are
+     * already queued, up to the connection's receive batch size.
+     * If none are queued, waits for the first one at most
+     * <em>timeout</em> ms. To wait forever, call this method with a
+     * timeout of 0. To not wait at all, call this method with a negative
+     * timeout. Returns the number of packets in the batch, which is 0
+     * if nothing arrived in time or if wakeup() was called. The packets
+     * are then decoded one at a time by next().
+     */
+    public int receive(long timeout);
+
+    /**
+     * Decodes and returns the next packet of the batch
+     * received by the last call to receive(). Returns null
+     * if the packet is not a legal message.
+     */
+    public Message next();
+
+    /**
+     * Gives back a regular token returned by next() which
+     * the connection no longer uses, so that next() can decode
+     * a later token into the same object.
+     */
+    public void recycle(RegularTokenMessage token);
+
+    /**
+     * Returns the number of incoming packets which the operating
+     * system has dropped so far because the receive buffer was full,
+     * or -1 if this is not known. This method is called on the
+     * protocol thread, so it must not block.
+     */
+    public long getDrops();
+
+    /**
+     * Causes a thread blocked in receive() to return
+     * immediately. If no thread is blocked, the next call
+     * to receive() does not wait.
+     */
+    public void wakeup();
+
+    public void close() throws IOException;
+
+}
@@ -66,4 +66,13 @@ public class WindowController {
 	token.setThreshold(threshold);
     }
 
+    /**
+     * Shrinks the window to its minimum, while this processor
+     * holds back messages its Listener has no room for. The
+     * threshold is kept, so the window grows back quickly.
+     */
+    public void hold(RegularTokenMessage token) {
+	token.setWindow(STARTING_WINDOW);
+    }
+
 }
@@ -44,9 +44,77 @@ public class Buffer {
 	this.length = length;
     }
     
+    /**
+     * The number of references to this Buffer. A new Buffer
+     * has one reference, which belongs to whoever created it.
+     */
+    private int references;
+
+    /**
+     * The BufferPool this Buffer returns to when it has
+     * no more references, or null.
+     */
+    private BufferPool pool;
+
+    void setPool(BufferPool pool) {
+	this.pool = pool;
+    }
+
+    /**
+     * Adds a reference to this Buffer, to keep it from being
+     * reused while a Message decoded from it is being kept.
+     */
+    public synchronized void retain() {
+	references++;
+    }
+
+    /**
+     * Removes a reference to this Buffer. The Buffer returns
+     * to its BufferPool when there are no more references.
+     */
+    public void release() {
+	boolean free;
+	synchronized (this) {
+	    if (references <= 0) {
+		throw new RuntimeException("Buffer released too many times");
+	    }
+	    references--;
+	    free = (references == 0);
+	}
+	if (free && pool != null) {
+	    pool.put(this);
+	}
+    }
+
+    /**
+     * Returns true iff there is more than one
+     * reference to this Buffer.
+     */
+    public synchronized boolean isShared() {
+	return references > 1;
+    }
+
+    /**
+     * Prepares a Buffer taken from a BufferPool
+     * for its new owner.
+     */
+    synchronized void reuse() {
+	this.references = 1;
+	this.length = 0;
+    }
+
     public Buffer(int length) {
-	this.data = new byte[Message.MAX_PACKET_SIZE];
+	this(length, Message.DEFAULT_PACKET_SIZE);
+    }
+
+    /**
+     * Creates a Buffer which can hold a packet of
+     * up to <em>capacity</em> bytes.
+     */
+    public Buffer(int length, int capacity) {
+	this.data = new byte[capacity];
 	this.length = length;
+	this.references = 1;
     }
     
     /**
@@ -54,7 +122,7 @@ public class Buffer {
      * data contained in this MessageBuffer.
      */
     public Buffer copy() {
-	Buffer buffer = new Buffer(length);
+	Buffer buffer = new Buffer(length, data.length);
 	System.arraycopy(this.data, 0,
 			 buffer.data, 0,
 			 length);
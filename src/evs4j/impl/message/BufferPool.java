@@ -0,0 +1,127 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl.message;
+
+/**
+ * A pool of Buffer objects in size classes, so that a small
+ * packet can be kept in a small Buffer. The size classes are
+ * the powers of two from MIN_SIZE up to the packet size, and
+ * the packet size itself. Buffers return to the pool when 
+ * they are released for the last time.
+ */
+public class BufferPool {
+
+    /**
+     * The size of the smallest class.
+     */
+    public static final int MIN_SIZE = 64;
+
+    /**
+     * The maximum number of free Buffers kept
+     * in each size class.
+     */
+    public static final int MAX_FREE = 1024;
+
+    /**
+     * The capacity of the Buffers in each class,
+     * from the smallest to the largest.
+     */
+    private int[] sizes;
+
+    /**
+     * The free Buffers in each class.
+     */
+    private Buffer[][] free;
+
+    /**
+     * The number of free Buffers in each class.
+     */
+    private int[] count;
+
+    public BufferPool(int packetSize) {
+	int n = 1;
+	for (int size = MIN_SIZE; size < packetSize; size <<= 1) {
+	    n++;
+	}
+	sizes = new int[n];
+	for (int i = 0; i < n - 1; i++) {
+	    sizes[i] = MIN_SIZE << i;
+	}
+	sizes[n - 1] = packetSize;
+	free = new Buffer[n][MAX_FREE];
+	count = new int[n];
+    }
+
+    /**
+     * Returns the size class of the smallest Buffers
+     * which can hold <em>length</em> bytes.
+     */
+    private int getSizeClass(int length) {
+	int i = 0;
+	while (i < sizes.length - 1 && sizes[i] < length) {
+	    i++;
+	}
+	return i;
+    }
+
+    /**
+     * Returns the capacity of the Buffer that get() would
+     * return for <em>length</em> bytes.
+     */
+    public int getCapacity(int length) {
+	return sizes[getSizeClass(length)];
+    }
+
+    /**
+     * Returns an empty Buffer which can hold at least
+     * <em>length</em> bytes, with one reference.
+     */
+    public Buffer get(int length) {
+	int i = getSizeClass(length);
+	Buffer buffer = null;
+	synchronized (this) {
+	    if (count[i] > 0) {
+		count[i]--;
+		buffer = free[i][count[i]];
+		free[i][count[i]] = null;
+	    }
+	}
+	if (buffer == null) {
+	    buffer = new Buffer(0, sizes[i]);
+	    buffer.setPool(this);
+	} else {
+	    buffer.reuse();
+	}
+	return buffer;
+    }
+
+    /**
+     * Takes back a Buffer which has no more references.
+     */
+    void put(Buffer buffer) {
+	int i = getSizeClass(buffer.getData().length);
+	synchronized (this) {
+	    if (count[i] < MAX_FREE) {
+		free[i][count[i]] = buffer;
+		count[i]++;
+	    }
+	    //otherwise leave it to the garbage collector
+	}
+    }
+
+}
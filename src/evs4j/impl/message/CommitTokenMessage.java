@@ -202,7 +202,8 @@ public class CommitTokenMessage extends TokenMessage {
      */
     public void execute(SRPConnection conn, SRPState state) {
 	Processor processor = conn.getProcessor();
-	if (processor.equals(destination)) {
+	//decoded Processors are canonical
+	if (processor == destination) {
 	    //got the commit token
 	    if (DEBUG) conn.log("Received commit token " + this);
 	    state.commitTokenReceived(this);
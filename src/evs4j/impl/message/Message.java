@@ -35,7 +35,7 @@ public abstract class Message implements CompileTimeMacro {
      * This must not be changed unless we redesign the
      * protocol implementation.
      */
-    public static final int MAGIC_NUMBER = 271828;
+    public static final int MAGIC_NUMBER = 271831;
     
     /**
      * The protocol number for the message.
@@ -75,10 +75,16 @@ public abstract class Message implements CompileTimeMacro {
     }
 
     /**
-     * The maximum size of a packet. This is defined by the 
-     * protocol.
+     * The default maximum size of a packet. All the processors
+     * on a ring must use the same packet size.
      */
-    public static final int MAX_PACKET_SIZE = 1500;
+    public static final int DEFAULT_PACKET_SIZE = 1500;
+
+    /**
+     * The largest packet size supported, which is the
+     * largest UDP payload.
+     */
+    public static final int MAX_PACKET_SIZE = 65507;
 
     public abstract void execute(SRPConnection conn, SRPState state);
     
@@ -0,0 +1,176 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl.message;
+
+/**
+ * A sorted set of message ids kept in an int array, so that
+ * the retransmission requests on the regular token can be
+ * decoded, updated and encoded without creating any objects.
+ */
+public class MessageIdSet {
+
+    /**
+     * The ids, in increasing order, in the
+     * first <em>size</em> elements.
+     */
+    private int[] ids;
+
+    private int size;
+
+    public MessageIdSet() {
+	this(16);
+    }
+
+    public MessageIdSet(int capacity) {
+	this.ids = new int[capacity];
+	this.size = 0;
+    }
+
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Returns the id at <em>index</em>, where 0 is the
+     * smallest id in the set.
+     */
+    public int get(int index) {
+	if (index >= size) {
+	    throw new IndexOutOfBoundsException(String.valueOf(index));
+	}
+	return ids[index];
+    }
+
+    public void clear() {
+	size = 0;
+    }
+
+    /**
+     * Returns the index of <em>id</em>, or (-(insertion point) - 1)
+     * if the set does not contain it.
+     */
+    private int indexOf(int id) {
+	int low = 0;
+	int high = size - 1;
+	while (low <= high) {
+	    int mid = (low + high) >>> 1;
+	    int value = ids[mid];
+	    if (value < id) {
+		low = mid + 1;
+	    } else if (value > id) {
+		high = mid - 1;
+	    } else {
+		return mid;
+	    }
+	}
+	return -(low + 1);
+    }
+
+    public boolean contains(int id) {
+	return indexOf(id) >= 0;
+    }
+
+    /**
+     * Adds <em>id</em> to the set. Returns false if
+     * it was already there.
+     */
+    public boolean add(int id) {
+	int index;
+	if (size == 0 || ids[size - 1] < id) {
+	    //common case: ids are added in order
+	    index = size;
+	} else {
+	    index = indexOf(id);
+	    if (index >= 0) {
+		return false;
+	    }
+	    index = -(index + 1);
+	}
+	if (size == ids.length) {
+	    int[] tmp = new int[ids.length * 2];
+	    System.arraycopy(ids, 0, tmp, 0, size);
+	    ids = tmp;
+	}
+	System.arraycopy(ids, index, ids, index + 1, size - index);
+	ids[index] = id;
+	size++;
+	return true;
+    }
+
+    /**
+     * Removes the id at <em>index</em>.
+     */
+    public void removeAt(int index) {
+	if (index >= size) {
+	    throw new IndexOutOfBoundsException(String.valueOf(index));
+	}
+	System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+	size--;
+    }
+
+    /**
+     * Removes <em>id</em> from the set. Returns false
+     * if it was not there.
+     */
+    public boolean remove(int id) {
+	int index = indexOf(id);
+	if (index < 0) {
+	    return false;
+	}
+	removeAt(index);
+	return true;
+    }
+
+    public boolean equals(Object object) {
+	if (!(object instanceof MessageIdSet)) {
+	    return false;
+	}
+	MessageIdSet set = (MessageIdSet) object;
+	if (set.size != size) {
+	    return false;
+	}
+	for (int i = 0; i < size; i++) {
+	    if (set.ids[i] != ids[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    public int hashCode() {
+	int h = 0;
+	for (int i = 0; i < size; i++) {
+	    h = 31 * h + ids[i];
+	}
+	return h;
+    }
+
+    public String toString() {
+	StringBuffer buf = new StringBuffer();
+	buf.append("[");
+	for (int i = 0; i < size; i++) {
+	    if (i > 0) {
+		buf.append(", ");
+	    }
+	    buf.append(ids[i]);
+	}
+	buf.append("]");
+	return buf.toString();
+    }
+
+}
@@ -17,14 +17,27 @@
 
 package evs4j.impl.message;
 
-import java.util.Set;
-import java.util.TreeSet;
 import evs4j.Processor;
 import evs4j.impl.ProcessorSet;
+import evs4j.impl.ProcessorRegistry;
 import evs4j.impl.message.CommitTokenMessage.CommitInfo;
 
 public class MessageReader extends DataReader {
 
+    /**
+     * Supplies the Processor objects of the
+     * decoded messages.
+     */
+    private ProcessorRegistry registry;
+
+    public MessageReader(ProcessorRegistry registry) {
+	this.registry = registry;
+    }
+
+    public MessageReader() {
+	this(new ProcessorRegistry());
+    }
+
     public Message readMessage(Buffer buffer) 
 	throws IllegalMessageException {
 	reset(buffer.getData(), 0);
@@ -54,21 +67,52 @@ public class MessageReader extends DataReader {
 	return m;
     }
 
+    /**
+     * The RegularMessage into which every regular message
+     * is decoded, or null if none has been decoded yet.
+     */
+    private RegularMessage flyweight;
+
+    /**
+     * Returns the flyweight, decoded from the header of the
+     * packet. Most regular messages are our own or are already
+     * in the ReceivedList, and they are discarded without creating
+     * any objects; the rest are materialized by the ReceivedList.
+     */
     private RegularMessage readRegularMessage(int magic, Buffer buffer) {
 	Processor sender = readProcessor();
 	long configurationId = readLong();
 	int id = readInt();
 	boolean recovered = readBoolean();
 	boolean safe = readBoolean();
-	int length = (int) readShort();
-	RegularMessage m = new RegularMessage(magic,
-					      buffer,
-					      sender,
-					      configurationId,
-					      id,
-					      recovered,
-					      safe,
-					      length);
+	boolean packed = readBoolean();
+	int key = readInt();
+	int channel = readUnsignedShort();
+	int length = readUnsignedShort();
+	RegularMessage m = flyweight;
+	if (m == null) {
+	    m = new RegularMessage(magic,
+				   buffer,
+				   sender,
+				   configurationId,
+				   id,
+				   recovered,
+				   safe,
+				   length);
+	    m.setFlyweight(true);
+	    flyweight = m;
+	}
+	m.reset(magic,
+		buffer,
+		sender,
+		configurationId,
+		id,
+		recovered,
+		safe,
+		packed,
+		key,
+		channel,
+		length);
 	return m;
     }
 
@@ -105,6 +149,19 @@ public class MessageReader extends DataReader {
 	return m;
     }
 
+    /**
+     * A regular token which is no longer in use, or null.
+     */
+    private RegularTokenMessage spareToken;
+
+    /**
+     * Takes back a regular token which is no longer in use,
+     * so that the next one can be decoded into it.
+     */
+    public void recycle(RegularTokenMessage token) {
+	spareToken = token;
+    }
+
     private RegularTokenMessage readRegularTokenMessage(int magic,
 							Buffer buffer,
 							long configurationId,
@@ -113,28 +170,42 @@ public class MessageReader extends DataReader {
 	int maxMessageId = readInt();
 	int lowMessageId = readInt();
 	Processor slowProcessor = readProcessor();
-	Set missed = new TreeSet();
+	RegularTokenMessage m = spareToken;
+	spareToken = null;
+	if (m == null) {
+	    m = new RegularTokenMessage(magic,
+					buffer,
+					configurationId,
+					id,
+					destination,
+					maxMessageId,
+					lowMessageId,
+					slowProcessor,
+					new MessageIdSet(),
+					0,
+					0,
+					0F,
+					0F);
+	} else {
+	    m.reset(magic,
+		    buffer,
+		    configurationId,
+		    id,
+		    destination,
+		    maxMessageId,
+		    lowMessageId,
+		    slowProcessor);
+	}
+	MessageIdSet missed = m.getMissed();
 	int len = readArrayLength();
 	for (int i = 0; i < len; i++) {
-	    missed.add(new Integer(readInt()));
+	    missed.add(readInt());
 	}
-	int totalBroadcast = (int) readInt();
-	int totalBacklog = (int) readInt();
-	float window = readFloat();
-	float threshold = readFloat();
-	return new RegularTokenMessage(magic,
-				       buffer,
-				       configurationId,
-				       id,
-				       destination,
-				       maxMessageId,
-				       lowMessageId,
-				       slowProcessor,
-				       missed,
-				       totalBroadcast,
-				       totalBacklog,
-				       window,
-				       threshold);
+	m.setTotalBroadcast(readInt());
+	m.setTotalBacklog(readInt());
+	m.setWindow(readFloat());
+	m.setThreshold(readFloat());
+	return m;
     }
 
     private CommitTokenMessage readCommitTokenMessage(int magic,
@@ -159,7 +230,7 @@ public class MessageReader extends DataReader {
 	int value = readInt();
 	Processor processor;
 	if (value != 0) {
-	    processor = new Processor(value);
+	    processor = registry.get(value);
 	} else {
 	    processor = null;
 	}
@@ -168,7 +239,7 @@ public class MessageReader extends DataReader {
 
     private ProcessorSet readProcessorSet() {
 	int len = readArrayLength();
-	ProcessorSet processors = new ProcessorSet();
+	ProcessorSet processors = new ProcessorSet(len);
 	for (int i=0; i<len; i++) {
 	    processors.add(readProcessor());
 	}
@@ -185,7 +256,15 @@ public class MessageReader extends DataReader {
     }
 
     private int readArrayLength() {
-	return (int) readShort();
+	return readUnsignedShort();
+    }
+
+    /**
+     * Reads a short which holds a length, so that
+     * lengths up to 65535 can be represented.
+     */
+    private int readUnsignedShort() {
+	return readShort() & 0xFFFF;
     }
     
 }
@@ -17,8 +17,6 @@
 
 package evs4j.impl.message;
 
-import java.util.Iterator;
-import java.util.Set;
 import evs4j.Processor;
 import evs4j.impl.ProcessorSet;
 import evs4j.impl.message.CommitTokenMessage.CommitInfo;
@@ -59,6 +57,9 @@ public class MessageWriter extends DataWriter {
 	writeInt(m.getId());
 	writeBoolean(m.getRecovered());
 	writeBoolean(m.getSafe());
+	writeBoolean(m.getPacked());
+	writeInt(m.getKey());
+	writeShort((short) m.getChannel());
 	writeShort((short) m.getLength());
 	//last value of offset is 
 	//taken to be the packet length
@@ -94,16 +95,16 @@ public class MessageWriter extends DataWriter {
 	writeInt(m.getMaxMessageId());
 	writeInt(m.getLowMessageId());
 	writeProcessor(m.getSlowProcessor());
-	Set missed = m.getMissed();
+	MessageIdSet missed = m.getMissed();
 	int len = missed.size();
-	int max = RegularTokenMessage.MAX_MISSED_MESSAGES;
+	//the rest will be requested on the next rotation
+	int max = RegularTokenMessage.getMaxMissedMessages(m.getBuffer().getData().length);
 	if (len > max) {
 	    len = max;
 	}
 	writeArrayLength(len);
-	Iterator iterator = missed.iterator();
-	while (iterator.hasNext()) {
-	    writeInt(((Integer) iterator.next()).intValue());	    
+	for (int i = 0; i < len; i++) {
+	    writeInt(missed.get(i));
 	}
 	writeInt(m.getTotalBroadcast());
 	writeInt(m.getTotalBacklog());	
@@ -133,9 +134,8 @@ public class MessageWriter extends DataWriter {
     private void writeProcessorSet(ProcessorSet processors) {
 	int len = processors.getCount();
 	writeArrayLength(len);
-	Iterator iterator = processors.iterator();
-	while (iterator.hasNext()) {
-	    writeProcessor((Processor) iterator.next());
+	for (int i = 0; i < len; i++) {
+	    writeProcessor(processors.get(i));
 	}
     }
 
@@ -17,10 +17,15 @@
 
 package evs4j.impl.message;
 
-import java.util.TreeSet;
+import java.util.Vector;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import evs4j.Processor;
+import evs4j.Listener;
+import evs4j.Configuration;
+import evs4j.Alert;
 import evs4j.impl.ProcessorSet;
+import evs4j.impl.ProcessorRegistry;
 import evs4j.impl.SRPConfiguration;
 import evs4j.impl.message.CommitTokenMessage.CommitInfo;
 import evs4j.impl.message.Message;
@@ -41,6 +46,16 @@ public class MessageWriterTest {
 	test.testRegularTokenMessage();
 	test.testCommitTokenMessage();
 	test.testJoinMessage();
+	test.testJumboRegularMessage();
+	test.testMissedCapacity();
+	test.testMessageIdSet();
+	test.testProcessorRegistry();
+	test.testProcessorSet();
+	test.testFlyweight();
+	test.testRetentionStore();
+	test.testPayloadBuffer();
+	test.testPackedMessage();
+	test.testBufferPool();
     }
 
     private MessageWriter writer;
@@ -72,17 +87,12 @@ public class MessageWriterTest {
 	long configurationId = SRPConfiguration.toConfigurationId(1, 42);
 	int id = 43834;
 	boolean safe = true;
-	RegularMessage m = new RegularMessage(Message.MAGIC_NUMBER,
-					      new Buffer(0),
-					      sender,
-					      0L,
-					      0,
-					      false,
-					      safe,
-					      0);
+	RegularMessage m = TestMessages.create(sender, 0, safe);
 	boolean recovered = false;
 	m.setConfigurationId(configurationId);
 	m.setId(id);
+	m.setKey(-7);
+	m.setChannel(65535);
 	byte[] data = "TEST_DATA".getBytes();
 	int length = data.length;
 	System.arraycopy(data, 0,
@@ -134,6 +144,9 @@ public class MessageWriterTest {
 	int id = 43834;
 	Processor dest = new Processor(2);
 	Processor slow = new Processor(3);
+	MessageIdSet missed = new MessageIdSet();
+	missed.add(7);
+	missed.add(9);
 	RegularTokenMessage m = new RegularTokenMessage(Message.MAGIC_NUMBER,
 							buffer,
 							configurationId,
@@ -142,7 +155,7 @@ public class MessageWriterTest {
 							10,     
 							5,
 							slow,
-							new TreeSet(),
+							missed,
 							100,
 							80,
 							13.5F,
@@ -150,6 +163,337 @@ public class MessageWriterTest {
 	checkWriteRead(m);
     }
 
-}
+    public void testJumboRegularMessage() {
+	int packetSize = 8972;
+	RegularMessage m = TestMessages.create(new Buffer(0, packetSize), new Processor(1), 43834, false);
+	m.setConfigurationId(SRPConfiguration.toConfigurationId(1, 42));
+	int length = RegularMessage.getMaxPayloadSize(packetSize);
+	for (int i = 0; i < length; i++) {
+	    m.getData()[m.getOffset() + i] = (byte) i;
+	}
+	m.setLength(length);
+	checkWriteRead(m);
+    }
+
+    public void testMissedCapacity() {
+	int packetSize = 1500;
+	int max = RegularTokenMessage.getMaxMissedMessages(packetSize);
+	if (max != 362) {
+	    throw new RuntimeException("Test failed");
+	}
+	MessageIdSet missed = new MessageIdSet();
+	MessageIdSet expected = new MessageIdSet();
+	for (int i = 1; i <= max + 10; i++) {
+	    missed.add(i);
+	    if (i <= max) {
+		expected.add(i);
+	    }
+	}
+	RegularTokenMessage m = new RegularTokenMessage(Message.MAGIC_NUMBER,
+							new Buffer(0, packetSize),
+							SRPConfiguration.toConfigurationId(1, 42),
+							43834,
+							new Processor(2),
+							10,
+							5,
+							new Processor(3),
+							missed,
+							100,
+							80,
+							13.5F,
+							23.6F);
+	writer.writeMessage(m);
+	RegularTokenMessage m2 = null;
+	try {
+	    m2 = (RegularTokenMessage) reader.readMessage(m.getBuffer());
+	} catch (IllegalMessageException e) {
+	    throw new RuntimeException("Test failed", e);
+	}
+	//only the lowest ids fit, the rest of the token is intact
+	if (!m2.getMissed().equals(expected) ||
+	    m2.getTotalBacklog() != 80 ||
+	    m2.getThreshold() != 23.6F) {
+	    throw new RuntimeException("Test failed");
+	}
+	//a recycled token is decoded in place
+	reader.recycle(m2);
+	m.getMissed().clear();
+	m.getMissed().add(3);
+	writer.writeMessage(m);
+	RegularTokenMessage m3 = null;
+	try {
+	    m3 = (RegularTokenMessage) reader.readMessage(m.getBuffer());
+	} catch (IllegalMessageException e) {
+	    throw new RuntimeException("Test failed", e);
+	}
+	if (m3 != m2 || !m3.equals(m)) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+    public void testProcessorRegistry() {
+	Processor self = new Processor(1);
+	ProcessorRegistry registry = new ProcessorRegistry(self);
+	MessageReader reader = new MessageReader(registry);
+	Processor[] decoded = new Processor[2];
+	for (int i = 0; i < decoded.length; i++) {
+	    RegularMessage m = TestMessages.create(new Processor(i + 1), 1, false);
+	    writer.writeMessage(m);
+	    try {
+		decoded[i] = ((RegularMessage) reader.readMessage(m.getBuffer())).getSender();
+	    } catch (IllegalMessageException e) {
+		throw new RuntimeException("Test failed", e);
+	    }
+	}
+	if (decoded[0] != self || decoded[1] != registry.get(2)) {
+	    throw new RuntimeException("Test failed");
+	}
+	//grow the table
+	for (int i = 3; i < 1000; i++) {
+	    registry.get(i);
+	}
+	if (registry.size() != 999 || registry.get(2) != decoded[1]) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+    private ProcessorSet toSet(int[] values) {
+	ProcessorSet set = new ProcessorSet(1);
+	for (int i = 0; i < values.length; i++) {
+	    set.add(new Processor(values[i]));
+	}
+	return set;
+    }
+
+    public void testProcessorSet() {
+	ProcessorSet a = toSet(new int[] {5, 1, 3, 9, 3});
+	ProcessorSet b = toSet(new int[] {2, 3, 9, 10});
+	if (!a.toString().equals("{1, 3, 5, 9}") ||
+	    !a.contains(new Processor(9)) ||
+	    a.contains(new Processor(2))) {
+	    throw new RuntimeException("Test failed");
+	}
+	if (!a.minus(b).equals(toSet(new int[] {1, 5})) ||
+	    !a.intersect(b).equals(toSet(new int[] {3, 9})) ||
+	    !a.getNextProcessor(new Processor(5)).equals(new Processor(9)) ||
+	    !a.getNextProcessor(new Processor(9)).equals(new Processor(1))) {
+	    throw new RuntimeException("Test failed");
+	}
+	ProcessorSet c = a.copy();
+	c.add(b);
+	if (!c.equals(toSet(new int[] {1, 2, 3, 5, 9, 10})) ||
+	    !c.contains(a) || !c.contains(b) || a.contains(c) ||
+	    a.getCount() != 4) {
+	    throw new RuntimeException("Test failed");
+	}
+	ProcessorSet result = new ProcessorSet();
+	c.minus(a, result);
+	if (!result.equals(toSet(new int[] {2, 10}))) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+    private RegularMessage read(Buffer buffer) {
+	try {
+	    return (RegularMessage) reader.readMessage(buffer);
+	} catch (IllegalMessageException e) {
+	    throw new RuntimeException("Test failed", e);
+	}
+    }
+
+    public void testFlyweight() {
+	RegularMessage m1 = TestMessages.create(new Processor(1), 1, true);
+	RegularMessage m2 = TestMessages.create(new Processor(2), 2, false);
+	m2.setRecovered(true);
+	writer.writeMessage(m1);
+	writer.writeMessage(m2);
+	RegularMessage r1 = read(m1.getBuffer());
+	RegularMessage kept = r1.materialize();
+	RegularMessage r2 = read(m2.getBuffer());
+	//the reader reuses one object, the copy is unaffected
+	if (r1 != r2 || !r2.isFlyweight() || !r2.equals(m2) ||
+	    kept == r1 || kept.isFlyweight() || !kept.equals(m1) ||
+	    kept.materialize() != kept) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+    public void testRetentionStore() {
+	RetentionStore store = new RetentionStore(0, null);
+	try {
+	    byte[] data = new byte[1500];
+	    int n = 2 * RetentionStore.SEGMENT_SIZE / data.length;
+	    long[] handles = new long[n];
+	    for (int i = 0; i < n; i++) {
+		data[0] = (byte) i;
+		handles[i] = store.put(data, data.length);
+	    }
+	    //one segment of direct memory, the rest spilled
+	    if (store.getSpilled() != RetentionStore.SEGMENT_SIZE) {
+		throw new RuntimeException("Test failed");
+	    }
+	    for (int i = 0; i < n; i++) {
+		store.get(handles[i], data, data.length);
+		if (data[0] != (byte) i ||
+		    store.getPacket(handles[i], data.length).get(0) != (byte) i) {
+		    throw new RuntimeException("Test failed");
+		}
+		store.free(handles[i]);
+	    }
+	    //the freed segments are reused
+	    for (int i = 0; i < n; i++) {
+		store.put(data, data.length);
+	    }
+	    if (store.getSpilled() != RetentionStore.SEGMENT_SIZE) {
+		throw new RuntimeException("Test failed");
+	    }
+	    //a stored message is retransmitted from the store
+	    RegularMessage m = TestMessages.create(new Processor(1), 1, false);
+	    m.setLength(3);
+	    m.getData()[m.getOffset()] = 42;
+	    writer.writeMessage(m);
+	    RegularMessage copy = read(m.getBuffer()).materialize();
+	    int length = m.getBuffer().getLength();
+	    if (!m.store(store) || !m.isStored() ||
+		m.getStoredPacket().remaining() != length) {
+		throw new RuntimeException("Test failed");
+	    }
+	    //and read from a copy, staying in the store
+	    if (!m.equals(copy) || !m.isStored()) {
+		throw new RuntimeException("Test failed");
+	    }
+	    store.close();
+	} catch (java.io.IOException e) {
+	    throw new RuntimeException("Test failed", e);
+	}
+    }
 
+    public void testPayloadBuffer() {
+	RegularMessage m = TestMessages.create(new Buffer(0, 1500), new Processor(1), 1, false);
+	m.setLength(3);
+	ByteBuffer payload = m.getPayload();
+	if (payload.remaining() != RegularMessage.getMaxPayloadSize(1500)) {
+	    throw new RuntimeException("Test failed");
+	}
+	//gather the payload from two buffers
+	ByteBuffer hello = ByteBuffer.allocateDirect(6);
+	hello.put("hello ".getBytes());
+	hello.flip();
+	payload.put(hello);
+	payload.put(ByteBuffer.wrap("world".getBytes()));
+	m.setLength(payload.position());
+	if (!"hello world".equals(new String(m.getData(), m.getOffset(), m.getLength()))) {
+	    throw new RuntimeException("Test failed");
+	}
+	writer.writeMessage(m);
+	RetentionStore store = new RetentionStore(0, null);
+	try {
+	    if (!m.store(store)) {
+		throw new RuntimeException("Test failed");
+	    }
+	    //read in place, without copying it back
+	    ByteBuffer view = m.asReadOnlyBuffer();
+	    byte[] text = new byte[view.remaining()];
+	    view.get(text);
+	    if (!"hello world".equals(new String(text)) ||
+		!view.isReadOnly() || !view.isDirect() || !m.isStored()) {
+		throw new RuntimeException("Test failed");
+	    }
+	    store.close();
+	} catch (java.io.IOException e) {
+	    throw new RuntimeException("Test failed", e);
+	}
+    }
 
+    public void testMessageIdSet() {
+	MessageIdSet set = new MessageIdSet(2);
+	int[] ids = {5, 1, 9, 3, 5, 7};
+	for (int i = 0; i < ids.length; i++) {
+	    set.add(ids[i]);
+	}
+	if (!set.toString().equals("[1, 3, 5, 7, 9]") ||
+	    !set.contains(7) || set.contains(4)) {
+	    throw new RuntimeException("Test failed");
+	}
+	set.remove(1);
+	set.removeAt(set.size() - 1);
+	if (!set.toString().equals("[3, 5, 7]") || set.remove(4)) {
+	    throw new RuntimeException("Test failed");
+	}
+    }
+
+    public void testPackedMessage() {
+	Processor sender = new Processor(1);
+	long configurationId = SRPConfiguration.toConfigurationId(1, 42);
+	RegularMessage packed = TestMessages.create(sender, 7, false);
+	packed.setConfigurationId(configurationId);
+	packed.setPacked(true);
+	String[] texts = {"ONE", "", "THREE"};
+	for (int i = 0; i < texts.length; i++) {
+	    RegularMessage m = TestMessages.create(sender, 0, false);
+	    byte[] data = texts[i].getBytes();
+	    System.arraycopy(data, 0,
+			     m.getData(), m.getOffset(),
+			     data.length);
+	    m.setLength(data.length);
+	    packed.append(m);
+	}
+	checkWriteRead(packed);
+	final Vector delivered = new Vector();
+	Listener listener = new Listener() {
+		public void onMessage(evs4j.Message message) {
+		    delivered.add(message);
+		}
+		public void onConfiguration(Configuration configuration) { }
+		public void onAlert(Alert alert) { }
+	    };
+	packed.deliver(listener);
+	if (delivered.size() != texts.length) {
+	    throw new RuntimeException("Test failed");
+	}
+	for (int i = 0; i < texts.length; i++) {
+	    evs4j.Message m = (evs4j.Message) delivered.get(i);
+	    String text = new String(m.getData(), m.getOffset(), m.getLength());
+	    if (!text.equals(texts[i]) || m.getId() != 7 || !m.getSender().equals(sender)) {
+		throw new RuntimeException("Test failed");
+	    }
+	}
+    }
+
+    public void testBufferPool() {
+	BufferPool pool = new BufferPool(1500);
+	if (pool.getCapacity(1) != 64 ||
+	    pool.getCapacity(65) != 128 ||
+	    pool.getCapacity(1025) != 1500) {
+	    throw new RuntimeException("Test failed");
+	}
+	Buffer b1 = pool.get(100);
+	b1.retain();
+	b1.release();
+	//still referenced, must not be reused
+	if (pool.get(100) == b1) {
+	    throw new RuntimeException("Test failed");
+	}
+	b1.release();
+	if (pool.get(100) != b1) {
+	    throw new RuntimeException("Test failed");
+	}
+	//move a small message to a small buffer
+	RegularMessage m = TestMessages.create(pool.get(1500), new Processor(1), 1, false);
+	writer.writeMessage(m);
+	if (!m.compact(pool) || m.getBuffer().getData().length != 64) {
+	    throw new RuntimeException("Test failed");
+	}
+	m.release();
+	try {
+	    m.release();
+	    throw new RuntimeException("Test failed");
+	} catch (RuntimeException e) {
+	    //expected
+	    if (e.getMessage().equals("Test failed")) {
+		throw e;
+	    }
+	}
+    }
+
+}
@@ -17,7 +17,11 @@
 
 package evs4j.impl.message;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import evs4j.Processor;
+import evs4j.DeliveryFuture;
+import evs4j.Listener;
 import evs4j.impl.CompileTimeMacro;
 import evs4j.impl.SRPConnection;
 import evs4j.impl.SRPState;
@@ -87,6 +91,118 @@ public class RegularMessage extends Message implements evs4j.Message {
 	return safe;
     }
 
+    /**
+     * <em>true</em> iff the payload of this RegularMessage
+     * is a sequence of application messages, each one
+     * preceded by its length as a short and its key.
+     */
+    private boolean packed;
+
+    public boolean getPacked() {
+	return packed;
+    }
+
+    public void setPacked(boolean packed) {
+	this.packed = packed;
+    }
+
+    /**
+     * The key chosen by the sender, which picks the
+     * delivery lane of the message.
+     */
+    private int key;
+
+    public int getKey() {
+	return key;
+    }
+
+    public void setKey(int key) {
+	this.key = key;
+    }
+
+    /**
+     * The channel of the message, which picks
+     * the Listener it is delivered to.
+     */
+    private int channel;
+
+    /**
+     * The highest channel number.
+     */
+    public static final int MAX_CHANNEL = 0xFFFF;
+
+    public int getChannel() {
+	return channel;
+    }
+
+    public void setChannel(int channel) {
+	if (channel < 0 || channel > MAX_CHANNEL) {
+	    throw new IllegalArgumentException("Invalid channel: " + channel);
+	}
+	this.channel = channel;
+    }
+
+    /**
+     * The futures of the messages sent with sendAsync() which
+     * this message carries: at most one, unless it is packed.
+     */
+    private DeliveryFuture[] futures;
+
+    private int futureCount;
+
+    public void addFuture(DeliveryFuture future) {
+	if (futures == null) {
+	    futures = new DeliveryFuture[1];
+	} else if (futureCount == futures.length) {
+	    DeliveryFuture[] tmp = new DeliveryFuture[futureCount * 2];
+	    System.arraycopy(futures, 0, tmp, 0, futureCount);
+	    futures = tmp;
+	}
+	futures[futureCount++] = future;
+    }
+
+    /**
+     * Completes the futures of this message with its id, 
+     * after it has been delivered.
+     */
+    public void completeDelivery() {
+	if (futureCount > 0) {
+	    Integer value = Integer.valueOf(id);
+	    for (int i = 0; i < futureCount; i++) {
+		futures[i].complete(value);
+	    }
+	}
+    }
+
+    /**
+     * Completes the safe stages of the futures of this
+     * message with its id, and forgets the futures.
+     */
+    public void completeSafe() {
+	if (futureCount > 0) {
+	    Integer value = Integer.valueOf(id);
+	    for (int i = 0; i < futureCount; i++) {
+		futures[i].complete(value);
+		futures[i].getSafeStage().complete(value);
+	    }
+	    futures = null;
+	    futureCount = 0;
+	}
+    }
+
+    /**
+     * Completes the futures of this message and their safe
+     * stages exceptionally, unless they have already completed.
+     */
+    public void failFutures(Throwable cause) {
+	for (int i = 0; i < futureCount; i++) {
+	    futures[i].completeExceptionally(cause);
+	    futures[i].getSafeStage().completeExceptionally(cause);
+	}
+	futures = null;
+	futureCount = 0;
+    }
+
     /**
      * The length of the payload data.
      */
@@ -101,16 +217,31 @@ public class RegularMessage extends Message implements evs4j.Message {
     }
     
     /**
-     * The maximum size of the payload, as defined
-     * in the protocol specification.
+     * The number of bytes of a packet which are not available
+     * to the payload. This leaves room for two headers, because
+     * during recovery a whole message is wrapped in another one.
      */
-    public static final int MAX_PAYLOAD_SIZE = 1450;
+    public static final int OVERHEAD = 64;
+
+    /**
+     * Returns the maximum size of the payload
+     * for the given packet size.
+     */
+    public static int getMaxPayloadSize(int packetSize) {
+	return packetSize - OVERHEAD;
+    }
 
     /**
      * The total length of the headers (includes the length
      * of the payload array).
      */
-    public static final int HEADER_LENGTH = 25;
+    public static final int HEADER_LENGTH = 32;
+
+    /**
+     * The length of the header of each message
+     * in the payload of a packed message.
+     */
+    public static final int PACKED_HEADER_LENGTH = 6;
     
     public RegularMessage(int magic,
 			  Buffer buffer,
@@ -127,6 +258,76 @@ public class RegularMessage extends Message implements evs4j.Message {
 	this.recovered = recovered;
 	this.safe = safe;
 	this.length = length;
+	this.offset = HEADER_LENGTH;
+    }
+
+    /**
+     * True iff this object is the flyweight of a MessageReader,
+     * which decodes every regular message into it. A flyweight is
+     * only valid until the next packet is decoded, so it must be 
+     * materialized before it is kept.
+     */
+    private boolean flyweight;
+
+    public boolean isFlyweight() {
+	return flyweight;
+    }
+
+    void setFlyweight(boolean flyweight) {
+	this.flyweight = flyweight;
+    }
+
+    /**
+     * Reinitializes the flyweight with
+     * the header of a new packet.
+     */
+    void reset(int magic,
+	       Buffer buffer,
+	       Processor sender,
+	       long configurationId,
+	       int id,
+	       boolean recovered,
+	       boolean safe,
+	       boolean packed,
+	       int key,
+	       int channel,
+	       int length) {
+	this.magic = magic;
+	this.buffer = buffer;
+	this.sender = sender;
+	this.configurationId = configurationId;
+	this.id = id;
+	this.recovered = recovered;
+	this.safe = safe;
+	this.packed = packed;
+	this.key = key;
+	this.channel = channel;
+	this.length = length;
+	this.offset = HEADER_LENGTH;
+    }
+
+    /**
+     * Returns a RegularMessage which can be kept: a copy of
+     * this message, sharing its Buffer, if this is a flyweight,
+     * and this message otherwise.
+     */
+    public RegularMessage materialize() {
+	if (!flyweight) {
+	    return this;
+	}
+	RegularMessage m = new RegularMessage(magic,
+					      buffer,
+					      sender,
+					      configurationId,
+					      id,
+					      recovered,
+					      safe,
+					      length);
+	m.packed = packed;
+	m.key = key;
+	m.channel = channel;
+	m.offset = offset;
+	return m;
     }
 
     public String toString() {
@@ -146,6 +347,12 @@ public class RegularMessage extends Message implements evs4j.Message {
 	buf.append(recovered);
 	buf.append("\n      safe = ");
 	buf.append(safe);
+	buf.append("\n    packed = ");
+	buf.append(packed);
+	buf.append("\n       key = ");
+	buf.append(key);
+	buf.append("\n   channel = ");
+	buf.append(channel);
 	buf.append("\n      length = ");
 	buf.append(length);
 	buf.append("\n}");
@@ -164,16 +371,242 @@ public class RegularMessage extends Message implements evs4j.Message {
      * Returns the buffer containing the data.
      */
     public byte[] getData() {
-	return buffer.getData();
+	return getBuffer().getData();
+    }
+
+    /**
+     * The RetentionStore holding the packet, or null
+     * if the packet is in the Buffer.
+     */
+    private RetentionStore store;
+
+    /**
+     * The handle of the packet in the store.
+     */
+    private long handle;
+
+    /**
+     * The length of the packet in the store.
+     */
+    private int storedLength;
+
+    public boolean isStored() {
+	return store != null;
+    }
+
+    /**
+     * Moves the packet into <em>store</em> and releases the
+     * Buffer. Returns false, leaving the packet where it is, if 
+     * someone else has retained the Buffer or the store fails.
+     */
+    public boolean store(RetentionStore store) {
+	if (this.store != null) {
+	    return true;
+	}
+	if (buffer.isShared()) {
+	    return false;
+	}
+	int len = buffer.getLength();
+	try {
+	    handle = store.put(buffer.getData(), len);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    return false;
+	}
+	this.store = store;
+	this.storedLength = len;
+	buffer.release();
+	buffer = null;
+	return true;
+    }
+
+    /**
+     * Returns the packet in the store, without copying it, or
+     * null if the packet is not stored. The ByteBuffer is only
+     * valid until the message is disposed of.
+     */
+    public ByteBuffer getStoredPacket() {
+	ByteBuffer packet = null;
+	if (store != null) {
+	    packet = store.getPacket(handle, storedLength);
+	}
+	return packet;
+    }
+
+    /**
+     * Returns the Buffer containing the packet, or a copy of
+     * the packet if it is in the store. The packet stays in the
+     * store, which only the connection's thread changes.
+     */
+    public Buffer getBuffer() {
+	if (store != null) {
+	    Buffer tmp = new Buffer(storedLength, storedLength);
+	    store.get(handle, tmp.getData(), storedLength);
+	    return tmp;
+	}
+	return buffer;
+    }
+
+    /**
+     * Takes the packet back out of the store, to hand
+     * it to someone who keeps it. This must be called
+     * on the connection's thread.
+     */
+    private void unstore() {
+	Buffer tmp = getBuffer();
+	store.free(handle);
+	store = null;
+	buffer = tmp;
+    }
+
+    public ByteBuffer asReadOnlyBuffer() {
+	ByteBuffer view;
+	if (store != null) {
+	    //read it where it is rather than copy it back
+	    view = store.getPacket(handle, storedLength);
+	} else {
+	    view = ByteBuffer.wrap(buffer.getData());
+	}
+	view.limit(offset + length);
+	view.position(offset);
+	return view.slice().asReadOnlyBuffer();
+    }
+
+    public ByteBuffer getPayload() {
+	byte[] data = getData();
+	int max = getMaxPayloadSize(data.length);
+	return ByteBuffer.wrap(data, offset, max).slice();
+    }
+
+    /**
+     * Gives up the reference to the packet held on behalf
+     * of the ReceivedList, wherever the packet is.
+     */
+    public void dispose() {
+	if (store != null) {
+	    store.free(handle);
+	    store = null;
+	} else {
+	    buffer.release();
+	}
     }
 
+    /**
+     * The index of the first byte of the payload.
+     */
+    private int offset;
+
     /**
      * Returns the index of the first byte of the
-     * message (usually the beginning of the first 
-     * protocol header).
+     * message (usually the end of the protocol 
+     * header).
      */
     public int getOffset() {
-	return HEADER_LENGTH;
+	return offset;
+    }
+
+    /**
+     * Appends the payload of <em>m</em> to the payload of
+     * this packed message, which takes over its futures.
+     * The caller must check that the result fits in the buffer.
+     */
+    public void append(RegularMessage m) {
+	for (int i = 0; i < m.futureCount; i++) {
+	    addFuture(m.futures[i]);
+	}
+	int len = m.getLength();
+	byte[] data = buffer.getData();
+	int i = offset + length;
+	data[i++] = (byte) ((len >>> 8) & 0xFF);
+	data[i++] = (byte) (len & 0xFF);
+	int k = m.getKey();
+	data[i++] = (byte) ((k >>> 24) & 0xFF);
+	data[i++] = (byte) ((k >>> 16) & 0xFF);
+	data[i++] = (byte) ((k >>> 8) & 0xFF);
+	data[i++] = (byte) (k & 0xFF);
+	System.arraycopy(m.getData(), m.getOffset(),
+			 data, i,
+			 len);
+	length += PACKED_HEADER_LENGTH + len;
+    }
+
+    /**
+     * Moves the packet to a smaller Buffer from <em>pool</em>, if
+     * it fits in one. Returns true iff the packet was moved; the 
+     * reference to the new Buffer belongs to the caller, and the old
+     * Buffer is not released.
+     */
+    public boolean compact(BufferPool pool) {
+	int len = buffer.getLength();
+	if (pool.getCapacity(len) >= buffer.getData().length) {
+	    return false;
+	}
+	Buffer small = pool.get(len);
+	System.arraycopy(buffer.getData(), 0,
+			 small.getData(), 0,
+			 len);
+	small.setLength(len);
+	buffer = small;
+	return true;
+    }
+
+    /**
+     * Keeps the data of this message from being reused
+     * after the Listener returns. This must be called in
+     * Listener.onMessage(), on the connection's thread.
+     */
+    public void retain() {
+	if (store != null) {
+	    unstore();
+	}
+	buffer.retain();
+    }
+
+    /**
+     * Allows the data of this message to be reused, after
+     * a call to retain().
+     */
+    public void release() {
+	buffer.release();
+    }
+
+    /**
+     * Delivers this message to the listener. A packed
+     * message is delivered as the sequence of messages
+     * it contains, which share its buffer, sender and id.
+     */
+    public void deliver(Listener listener) {
+	if (!packed) {
+	    listener.onMessage(this);
+	} else {
+	    //a stored packet is read from a copy
+	    Buffer packet = getBuffer();
+	    byte[] data = packet.getData();
+	    int i = offset;
+	    int end = offset + length;
+	    while (i < end) {
+		int len = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+		int k =
+		    ((data[i + 2] & 0xFF) << 24) |
+		    ((data[i + 3] & 0xFF) << 16) |
+		    ((data[i + 4] & 0xFF) << 8) |
+		    (data[i + 5] & 0xFF);
+		i += PACKED_HEADER_LENGTH;
+		RegularMessage m = new RegularMessage(magic,
+						      packet,
+						      sender,
+						      configurationId,
+						      id,
+						      false,
+						      safe,
+						      len);
+		m.key = k;
+		m.channel = channel;
+		m.offset = i;
+		listener.onMessage(m);
+		i += len;
+	    }
+	}
     }
 
     /**
@@ -182,7 +615,8 @@ public class RegularMessage extends Message implements evs4j.Message {
     public void execute(SRPConnection conn, SRPState state) {
 	Processor processor = conn.getProcessor();
 	//ignore your own messages
-	if (!processor.equals(sender)) {
+	//(decoded Processors are canonical)
+	if (processor != sender) {
 	    if (conn.getConfigurationId() == configurationId) {
 		state.regularMessageReceived(this);
 	    } else {
@@ -205,7 +639,10 @@ public class RegularMessage extends Message implements evs4j.Message {
 	    m1.getConfigurationId() == m2.getConfigurationId() &&
 	    m1.getId() == m2.getId() &&
 	    m1.getRecovered() == m2.getRecovered() &&
-	    m1.getSafe() == m2.getSafe();
+	    m1.getSafe() == m2.getSafe() &&
+	    m1.getPacked() == m2.getPacked() &&
+	    m1.getKey() == m2.getKey() &&
+	    m1.getChannel() == m2.getChannel();
 	//compare message content
 	int len1 = m1.getLength();
 	int len2 = m2.getLength();
@@ -17,8 +17,6 @@
 
 package evs4j.impl.message;
 
-import java.util.Set;
-import java.util.TreeSet;
 import java.net.DatagramPacket;
 import evs4j.Processor;
 import evs4j.impl.SRPTokenAlert;
@@ -29,11 +27,19 @@ import evs4j.impl.SRPState;
 public class RegularTokenMessage extends TokenMessage {
 
     /**
-     * The maximum number of missed messages ids to be
-     * listed in the token, as defined in the protocol
-     * specification.
+     * The length of a regular token, not counting
+     * the missed message ids.
      */
-    public static final int MAX_MISSED_MESSAGES = 362;
+    public static final int FIXED_LENGTH = 51;
+
+    /**
+     * Returns the maximum number of missed message ids
+     * which can be listed in a token of the given packet
+     * size (362 for the default packet size.)
+     */
+    public static int getMaxMissedMessages(int packetSize) {
+	return (packetSize - FIXED_LENGTH) / 4;
+    }
 
     /**
      * The largest id of any message that
@@ -82,13 +88,13 @@ public class RegularTokenMessage extends TokenMessage {
     /**
      * The retransmission requests.
      */
-    private Set missed;
+    private MessageIdSet missed;
     
-    public Set getMissed() {
+    public MessageIdSet getMissed() {
 	return missed;
     }
 
-    public void setMissed(Set missed) {
+    public void setMissed(MessageIdSet missed) {
 	this.missed = missed;
     }
 
@@ -159,7 +165,7 @@ public class RegularTokenMessage extends TokenMessage {
 			       int maxMessageId,
 			       int lowMessageId,
 			       Processor slowProcessor,
-			       Set missed,
+			       MessageIdSet missed,
 			       int totalBroadcast,
 			       int totalBacklog,
 			       float window,
@@ -180,6 +186,30 @@ public class RegularTokenMessage extends TokenMessage {
 	this.threshold = threshold;
     }
     
+    /**
+     * Reinitializes a token which is no longer in use, so that
+     * MessageReader can decode a new one into it. The missed 
+     * ids are cleared, to be added by the caller.
+     */
+    void reset(int magic,
+	       Buffer buffer,
+	       long configurationId,
+	       int id,
+	       Processor destination,
+	       int maxMessageId,
+	       int lowMessageId,
+	       Processor slowProcessor) {
+	this.magic = magic;
+	this.buffer = buffer;
+	this.configurationId = configurationId;
+	this.id = id;
+	this.destination = destination;
+	this.maxMessageId = maxMessageId;
+	this.lowMessageId = lowMessageId;
+	this.slowProcessor = slowProcessor;
+	this.missed.clear();
+    }
+
     /**
      * Use this constructor when starting a configuration.
      */
@@ -194,7 +224,7 @@ public class RegularTokenMessage extends TokenMessage {
 	     0,     
 	     0,
 	     null,
-	     new TreeSet(),
+	     new MessageIdSet(),
 	     0,
 	     0,
 	     0F,
@@ -237,7 +267,8 @@ public class RegularTokenMessage extends TokenMessage {
      */
     public void execute(SRPConnection conn, SRPState state) {
 	Processor processor = conn.getProcessor();
-	if (destination.equals(processor)) {
+	//decoded Processors are canonical
+	if (destination == processor) {
 	    //received regular token
 	    if (DEBUG) conn.log("Received regular token " + this);
 	    state.regularTokenReceived(this);
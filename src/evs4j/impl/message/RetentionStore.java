@@ -0,0 +1,260 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package evs4j.impl.message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Holds the packets of messages which have been delivered but may
+ * still have to be retransmitted, outside the Java heap. Packets are
+ * written one after the other into segments of direct memory, up to
+ * a budget, and then into segments of a memory-mapped spill file. A
+ * segment is reused when all its packets have been freed; since
+ * messages are freed roughly in the order they were stored, the 
+ * segments are reused in turn.
+ * <p>
+ * A stored packet is identified by a handle, which encodes
+ * its segment and its position in the segment.
+ */
+public class RetentionStore {
+
+    /**
+     * The size of a segment in bytes.
+     */
+    public static final int SEGMENT_SIZE = 1 << 20;
+
+    private static class Segment {
+	public int index;
+	public ByteBuffer data;
+	/**
+	 * The position at which the next packet is written.
+	 */
+	public int position;
+	/**
+	 * The number of packets not yet freed.
+	 */
+	public int live;
+	public boolean mapped;
+	public Segment next;
+    }
+
+    /**
+     * All the segments created so far, by index.
+     */
+    private Segment[] segments;
+
+    private int count;
+
+    /**
+     * The segment being written.
+     */
+    private Segment current;
+
+    /**
+     * Free segments of direct memory.
+     */
+    private Segment free;
+
+    /**
+     * Free segments of the spill file.
+     */
+    private Segment freeMapped;
+
+    /**
+     * The number of segments of direct memory,
+     * and the maximum number.
+     */
+    private int direct;
+
+    private int maxDirect;
+
+    /**
+     * The directory of the spill file.
+     */
+    private File directory;
+
+    private File file;
+
+    private FileChannel channel;
+
+    /**
+     * The number of segments in the spill file.
+     */
+    private int mapped;
+
+    /**
+     * Creates a store which uses up to <em>budget</em> bytes of
+     * direct memory (at least one segment), and then spills to a file 
+     * created in <em>directory</em>, or in the default temporary 
+     * directory if <em>directory</em> is null.
+     */
+    public RetentionStore(long budget, File directory) {
+	this.maxDirect = (int) Math.max(1, budget / SEGMENT_SIZE);
+	this.directory = directory;
+	this.segments = new Segment[16];
+	this.count = 0;
+    }
+
+    /**
+     * Copies the first <em>length</em> bytes of <em>data</em>
+     * into the store and returns their handle.
+     */
+    public synchronized long put(byte[] data, int length) throws IOException {
+	if (length > SEGMENT_SIZE) {
+	    throw new IllegalArgumentException("Packet too large: " + length);
+	}
+	if (current == null || current.position + length > SEGMENT_SIZE) {
+	    Segment previous = current;
+	    current = take();
+	    if (previous != null && previous.live == 0) {
+		recycle(previous);
+	    }
+	}
+	Segment segment = current;
+	int position = segment.position;
+	ByteBuffer dst = segment.data;
+	dst.clear();
+	dst.position(position);
+	dst.put(data, 0, length);
+	segment.position = position + length;
+	segment.live++;
+	return ((long) segment.index << 32) | position;
+    }
+
+    /**
+     * Copies the <em>length</em> bytes stored under
+     * <em>handle</em> into <em>data</em>.
+     */
+    public synchronized void get(long handle, byte[] data, int length) {
+	ByteBuffer src = segments[(int) (handle >>> 32)].data;
+	src.clear();
+	src.position((int) handle);
+	src.get(data, 0, length);
+    }
+
+    /**
+     * Returns a ByteBuffer containing the <em>length</em> bytes
+     * stored under <em>handle</em>, without copying them, which 
+     * is valid until the handle is freed.
+     */
+    public synchronized ByteBuffer getPacket(long handle, int length) {
+	ByteBuffer view = segments[(int) (handle >>> 32)].data.duplicate();
+	int position = (int) handle;
+	view.limit(position + length);
+	view.position(position);
+	return view.slice();
+    }
+
+    /**
+     * Frees the packet stored under <em>handle</em>.
+     */
+    public synchronized void free(long handle) {
+	Segment segment = segments[(int) (handle >>> 32)];
+	segment.live--;
+	if (segment.live == 0 && segment != current) {
+	    recycle(segment);
+	}
+    }
+
+    /**
+     * Returns a free segment, preferring direct memory.
+     */
+    private Segment take() throws IOException {
+	Segment segment;
+	if (free != null) {
+	    segment = free;
+	    free = segment.next;
+	} else if (direct < maxDirect) {
+	    segment = create(ByteBuffer.allocateDirect(SEGMENT_SIZE), false);
+	    direct++;
+	} else if (freeMapped != null) {
+	    segment = freeMapped;
+	    freeMapped = segment.next;
+	} else {
+	    segment = create(map(), true);
+	}
+	segment.next = null;
+	return segment;
+    }
+
+    private Segment create(ByteBuffer data, boolean mapped) {
+	Segment segment = new Segment();
+	segment.data = data;
+	segment.mapped = mapped;
+	if (count == segments.length) {
+	    Segment[] tmp = new Segment[count * 2];
+	    System.arraycopy(segments, 0, tmp, 0, count);
+	    segments = tmp;
+	}
+	segment.index = count;
+	segments[count++] = segment;
+	return segment;
+    }
+
+    /**
+     * Maps a new segment at the end of the spill
+     * file, creating the file if necessary.
+     */
+    private ByteBuffer map() throws IOException {
+	if (channel == null) {
+	    file = File.createTempFile("evs4j", ".spill", directory);
+	    file.deleteOnExit();
+	    channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+	long position = (long) mapped * SEGMENT_SIZE;
+	ByteBuffer data = channel.map(FileChannel.MapMode.READ_WRITE, position, SEGMENT_SIZE);
+	mapped++;
+	return data;
+    }
+
+    private void recycle(Segment segment) {
+	segment.position = 0;
+	if (segment.mapped) {
+	    segment.next = freeMapped;
+	    freeMapped = segment;
+	} else {
+	    segment.next = free;
+	    free = segment;
+	}
+    }
+
+    /**
+     * Returns the number of bytes of the spill file
+     * which are in use, or have been.
+     */
+    public synchronized long getSpilled() {
+	return (long) mapped * SEGMENT_SIZE;
+    }
+
+    /**
+     * Deletes the spill file, if any. The store must
+     * not be used afterwards.
+     */
+    public synchronized void close() throws IOException {
+	if (channel != null) {
+	    channel.close();
+	    channel = null;
+	    file.delete();
+	}
+    }
+
+}
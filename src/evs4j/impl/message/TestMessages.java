@@ -0,0 +1,48 @@
+/**
+ *
+ *  Copyright 2000-2006 Guglielmo Lichtner (lichtner_at_bway_dot_net)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package evs4j.impl.message;
+
+import evs4j.Processor;
+
+/**
+ * Creates the messages used by the tests.
+ */
+public class TestMessages {
+
+    /**
+     * Returns an empty RegularMessage from <em>sender</em>
+     * with the given id, on configuration 5.
+     */
+    public static RegularMessage create(Processor sender, int id, boolean safe) {
+	return create(new Buffer(0), sender, id, safe);
+    }
+
+    /**
+     * Returns an empty RegularMessage in <em>buffer</em>.
+     */
+    public static RegularMessage create(Buffer buffer, Processor sender, int id, boolean safe) {
+	return new RegularMessage(Message.MAGIC_NUMBER,
+				  buffer,
+				  sender,
+				  5L,
+				  id,
+				  false,
+				  safe,
+				  0);
+    }
+
+}
@@ -59,6 +59,21 @@ public abstract class Timeout implements CompileTimeMacro {
 	return b;
     }
 
+    /**
+     * Returns the time (as in System.currentTimeMillis())
+     * at which the timeout expires, or Long.MAX_VALUE if
+     * the timeout is not waiting.
+     */
+    public long getDeadline() {
+	long deadline;
+	if (set) {
+	    deadline = expires;
+	} else {
+	    deadline = Long.MAX_VALUE;
+	}
+	return deadline;
+    }
+
     /**
      * Begins a new waiting cycle. This method starts a new
      * waiting cycle regardless of whether this Timeout is 
@@ -22,6 +22,7 @@ import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.Vector;
 import evs4j.Alert;
@@ -173,15 +174,13 @@ public class Main {
 		    //ready to transmit
 		}
 	    }
-	    byte[] data = new byte[conn.getMaxMessageSize()];
+	    ByteBuffer data = ByteBuffer.allocateDirect(conn.getMaxMessageSize());
 	    boolean safe = false;
 	    while (true) {
 		Message message = conn.createMessage(safe);
-		int length = data.length;
-		System.arraycopy(data, 0,
-				 message.getData(), message.getOffset(),
-				 length);
-		message.setLength(length);
+		ByteBuffer payload = message.getPayload();
+		payload.put(data.duplicate());
+		message.setLength(payload.position());
 		try {
 		    conn.send(message);
 		} catch (IOException e) {
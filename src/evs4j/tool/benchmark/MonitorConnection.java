@@ -78,6 +78,10 @@ public class MonitorConnection extends ConnectionDecorator {
 	listener.onMessage(message);
     }
 
+    public void onMessages(Message[] batch, int count) {
+	passMessages(batch, count);
+    }
+
     public void onAlert(Alert alert) {
 	if (alert instanceof SRPTokenAlert) {
 	    SRPTokenAlert tokenAlert = (SRPTokenAlert) alert;